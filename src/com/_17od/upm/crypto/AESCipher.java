@@ -0,0 +1,55 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+/**
+ * AES-256 in CBC mode with PKCS7 padding as provided by a CipherProvider.
+ * The methods work the same way as BouncyCastle's BufferedBlockCipher.
+ */
+interface AESCipher
+{
+    int BLOCK_SIZE = 16;
+
+    /**
+     * Start again with the same key but a new IV
+     */
+    void init(byte[] iv);
+
+    /**
+     * @return the most bytes processBytes() and doFinal() could return
+     * between them for length more bytes of input
+     */
+    int getOutputSize(int length);
+
+    int processBytes(byte[] in, int inOff, int length, byte[] out, int outOff);
+
+    /**
+     * Process the last block and go back to the start, ready for the next
+     * message with the same key and IV
+     * @throws CryptoException if the padding of decrypted data is wrong
+     */
+    int doFinal(byte[] out, int outOff) throws CryptoException;
+
+    /**
+     * Throw away anything processed so far
+     */
+    void reset();
+}
@@ -0,0 +1,85 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.PKCS7Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * AES from the bundled BouncyCastle library. It's pure Java so it works
+ * everywhere, whatever the JCE policy files allow.
+ */
+class BouncyCastleCipherProvider extends CipherProvider
+{
+
+    String getName()
+    {
+        return "BouncyCastle";
+    }
+
+    AESCipher newCipher(final boolean forEncryption, byte[] key, byte[] iv)
+    {
+        final KeyParameter keyParameter = new KeyParameter(key);
+        final BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        cipher.init(forEncryption, new ParametersWithIV(keyParameter, iv));
+        return new AESCipher()
+        {
+            public void init(byte[] iv)
+            {
+                cipher.init(forEncryption, new ParametersWithIV(keyParameter, iv));
+            }
+
+            public int getOutputSize(int length)
+            {
+                return cipher.getOutputSize(length);
+            }
+
+            public int processBytes(byte[] in, int inOff, int length, byte[] out, int outOff)
+            {
+                return cipher.processBytes(in, inOff, length, out, outOff);
+            }
+
+            public int doFinal(byte[] out, int outOff) throws CryptoException
+            {
+                try
+                {
+                    return cipher.doFinal(out, outOff);
+                }
+                catch (InvalidCipherTextException e)
+                {
+                    throw new CryptoException(e);
+                }
+            }
+
+            public void reset()
+            {
+                cipher.reset();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Supplies the AES implementation used by EncryptionService. The providers
+ * all produce exactly the same ciphertext so which one is used only affects
+ * how fast it is.
+ */
+abstract class CipherProvider
+{
+    private static final Logger log = LoggerFactory.getLogger(CipherProvider.class);
+    // how much is encrypted to time each provider
+    private static final int TIMING_LENGTH = 64 * 1024;
+    // how many times each provider is run before it's timed, so the JIT
+    // has compiled it
+    private static final int WARM_UP_RUNS = 3;
+    // how many times each provider is timed, the best time is the one used
+    private static final int TIMED_RUNS = 5;
+    // how much faster than the first provider another has to be to be
+    // chosen, in percent, so noise in the timings doesn't decide it
+    private static final int MIN_SPEEDUP = 20;
+
+    private static CipherProvider fastest;
+
+    abstract String getName();
+
+    abstract AESCipher newCipher(boolean forEncryption, byte[] key, byte[] iv);
+
+    /**
+     * Time each of the providers that work on this JRE the first time this
+     * is called and return the fastest. JCE is preferred when they're
+     * about the same.
+     */
+    static synchronized CipherProvider getFastest()
+    {
+        if (fastest == null)
+        {
+            fastest = chooseFastest(new CipherProvider[] {new JCECipherProvider(), new BouncyCastleCipherProvider()});
+        }
+        return fastest;
+    }
+
+    /**
+     * @return the provider with the best time out of several runs, or the
+     * earliest one in providers unless another is clearly faster
+     */
+    static CipherProvider chooseFastest(CipherProvider[] providers)
+    {
+        boolean[] available = new boolean[providers.length];
+        long[] bestTimes = new long[providers.length];
+        for (int i = 0; i < providers.length; i++)
+        {
+            try
+            {
+                for (int run = 0; run < WARM_UP_RUNS; run++)
+                {
+                    time(providers[i]);
+                }
+                available[i] = true;
+                bestTimes[i] = Long.MAX_VALUE;
+            }
+            catch (RuntimeException e)
+            {
+                log.info(providers[i].getName() + " AES isn't available: " + e.getMessage());
+            }
+        }
+        // The providers take turns so a pause, such as a garbage
+        // collection, doesn't count against only one of them
+        for (int run = 0; run < TIMED_RUNS; run++)
+        {
+            for (int i = 0; i < providers.length; i++)
+            {
+                if (available[i])
+                {
+                    bestTimes[i] = Math.min(bestTimes[i], time(providers[i]));
+                }
+            }
+        }
+
+        CipherProvider chosen = null;
+        long chosenTime = Long.MAX_VALUE;
+        for (int i = 0; i < providers.length; i++)
+        {
+            if (!available[i])
+            {
+                continue;
+            }
+            log.debug(providers[i].getName() + " AES took " + bestTimes[i] / 1000 + "us for " + TIMING_LENGTH + " bytes");
+            if (chosen == null || bestTimes[i] * (100 + MIN_SPEEDUP) < chosenTime * 100)
+            {
+                chosen = providers[i];
+                chosenTime = bestTimes[i];
+            }
+        }
+        if (chosen == null)
+        {
+            throw new IllegalStateException("No AES implementation is available");
+        }
+        log.info("Using " + chosen.getName() + " AES");
+        return chosen;
+    }
+
+    private static long time(CipherProvider provider)
+    {
+        byte[] data = new byte[TIMING_LENGTH];
+        AESCipher cipher = provider.newCipher(true, new byte[32], new byte[AESCipher.BLOCK_SIZE]);
+        byte[] out = new byte[cipher.getOutputSize(data.length)];
+        long start = System.nanoTime();
+        int length = cipher.processBytes(data, 0, data.length, out, 0);
+        try
+        {
+            cipher.doFinal(out, length);
+        }
+        catch (CryptoException e)
+        {
+            throw new IllegalStateException(e.getMessage());
+        }
+        return System.nanoTime() - start;
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the streams handed out by EncryptionService when the cipher
+ * rejects the data passing through them (e.g. the padding is wrong because
+ * the data was encrypted with a different password)
+ */
+public class CryptoIOException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public CryptoIOException(Exception e)
+    {
+        super(e);
+    }
+
+}
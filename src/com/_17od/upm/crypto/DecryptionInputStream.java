@@ -0,0 +1,140 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decrypts the underlying stream a buffer at a time so that the cleartext
+ * never has to be held in memory as a whole.
+ */
+class DecryptionInputStream extends FilterInputStream
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private AESCipher cipher;
+    private byte[] inBuf = new byte[BUFFER_SIZE];
+    private byte[] outBuf;
+    private int outPos = 0;
+    private int outEnd = 0;
+    private boolean finished = false;
+
+    DecryptionInputStream(InputStream in, AESCipher cipher)
+    {
+        super(in);
+        this.cipher = cipher;
+        this.cipher.reset();
+        outBuf = new byte[cipher.getOutputSize(BUFFER_SIZE) + AESCipher.BLOCK_SIZE];
+    }
+
+    public int read() throws IOException
+    {
+        if (!fill())
+        {
+            return -1;
+        }
+        return outBuf[outPos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!fill())
+        {
+            return -1;
+        }
+        int n = Math.min(len, outEnd - outPos);
+        System.arraycopy(outBuf, outPos, b, off, n);
+        outPos += n;
+        return n;
+    }
+
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < n && fill())
+        {
+            int chunk = (int) Math.min(n - skipped, outEnd - outPos);
+            outPos += chunk;
+            skipped += chunk;
+        }
+        return skipped;
+    }
+
+    public int available()
+    {
+        return outEnd - outPos;
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    public void mark(int readlimit)
+    {
+    }
+
+    public void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Make sure there is decrypted data waiting in outBuf
+     * @return false if the end of the stream has been reached
+     */
+    private boolean fill() throws IOException
+    {
+        while (outPos >= outEnd)
+        {
+            if (finished)
+            {
+                return false;
+            }
+            outPos = 0;
+            int numRead = in.read(inBuf, 0, inBuf.length);
+            if (numRead == -1)
+            {
+                finished = true;
+                try
+                {
+                    outEnd = cipher.doFinal(outBuf, 0);
+                }
+                catch (CryptoException e)
+                {
+                    throw new CryptoIOException(e);
+                }
+            }
+            else
+            {
+                outEnd = cipher.processBytes(inBuf, 0, numRead, outBuf, 0);
+            }
+        }
+        return true;
+    }
+
+}
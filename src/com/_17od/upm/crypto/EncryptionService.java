@@ -20,20 +20,20 @@
  */
 package com._17od.upm.crypto;
 
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
-import org.bouncycastle.crypto.BufferedBlockCipher;
-import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.PBEParametersGenerator;
-import org.bouncycastle.crypto.digests.SHA512Digest;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
-import org.bouncycastle.crypto.paddings.PKCS7Padding;
-import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.Wrapper;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESWrapEngine;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
 
 
 public class EncryptionService
@@ -41,13 +41,46 @@ public class EncryptionService
 
     private static final String randomAlgorithm = "SHA1PRNG";
     public static final int SALT_LENGTH = 64;
+    public static final int IV_LENGTH = 16;
+    private static final int BLOCK_SIZE = AESCipher.BLOCK_SIZE;
+    // how much of a buffer that isn't backed by an array is copied out for
+    // the cipher at a time
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] KEY_CHECK_INPUT = "UPM key check".getBytes();
 
     private byte[] salt;
-    private BufferedBlockCipher encryptCipher;
-    private BufferedBlockCipher decryptCipher;
+    private CipherProvider cipherProvider;
+    private KeyDerivation keyDerivation;
+    // derived from the password, the data key is wrapped with it
+    private byte[] keyEncryptionKey;
+    // the key the data is encrypted with and the IV for the fixed IV ciphers
+    private byte[] key;
+    private byte[] iv;
+    // the data key wrapped with keyEncryptionKey, or null if the data is
+    // encrypted with the key derived from the password
+    private byte[] wrappedKey;
+    private SecureRandom ivGenerator;
+    private AESCipher encryptCipher;
+    private AESCipher decryptCipher;
 
+    /**
+     * Used for a new database, with a new random salt and the default key
+     * derivation
+     */
     public EncryptionService(char[] password) throws CryptoException
     {
+        this(password, KeyDerivation.DEFAULT);
+    }
+
+    /**
+     * Used for a new database. The data is encrypted with a random key which
+     * is wrapped with the key derived from the password, so the password
+     * can be changed without re-encrypting anything.
+     */
+    public EncryptionService(char[] password, KeyDerivation keyDerivation) throws CryptoException
+    {
+        cipherProvider = CipherProvider.getFastest();
+        this.keyDerivation = keyDerivation;
         try
         {
             this.salt = generateSalt();
@@ -60,25 +93,228 @@ public class EncryptionService
         {
             throw new CryptoException(e);
         }
-        initCipher(password);
+        deriveKeyEncryptionKey(password);
+        newDataKey();
     }
 
+    /**
+     * Used for a database that doesn't record its key derivation
+     */
     public EncryptionService(char[] password, byte[] salt)
+    {
+        this(password, salt, KeyDerivation.LEGACY);
+    }
+
+    /**
+     * Used for an existing database. The data is taken to be encrypted with
+     * the key derived from the password until unwrapKey() is called.
+     */
+    public EncryptionService(char[] password, byte[] salt, KeyDerivation keyDerivation)
+    {
+        this(password, salt, keyDerivation, CipherProvider.getFastest());
+    }
+
+    EncryptionService(char[] password, byte[] salt, CipherProvider cipherProvider)
+    {
+        this(password, salt, KeyDerivation.LEGACY, cipherProvider);
+    }
+
+    private EncryptionService(char[] password, byte[] salt, KeyDerivation keyDerivation, CipherProvider cipherProvider)
     {
         this.salt = salt;
-        initCipher(password);
+        this.keyDerivation = keyDerivation;
+        this.cipherProvider = cipherProvider;
+        byte[] derivedIV = deriveKeyEncryptionKey(password);
+        setKey(keyEncryptionKey, derivedIV);
     }
 
-    public void initCipher(char[] password)
+    /**
+     * A copy of other that can be changed without changing other. The keys
+     * are never changed in place so they can be shared.
+     */
+    private EncryptionService(EncryptionService other)
     {
-        PBEParametersGenerator keyGenerator = new PKCS12ParametersGenerator(new SHA512Digest());
-        keyGenerator.init(PKCS12ParametersGenerator.PKCS12PasswordToBytes(password), salt, 5000);
-        CipherParameters keyParams = keyGenerator.generateDerivedParameters(256, 128);
+        this.salt = other.salt;
+        this.keyDerivation = other.keyDerivation;
+        this.cipherProvider = other.cipherProvider;
+        this.keyEncryptionKey = other.keyEncryptionKey;
+        this.wrappedKey = other.wrappedKey;
+        setKey(other.key, other.iv);
+    }
 
-        encryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
-        encryptCipher.init(true, keyParams);
-        decryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
-        decryptCipher.init(false, keyParams);
+    /**
+     * @return the IV derived along with the key
+     */
+    private byte[] deriveKeyEncryptionKey(char[] password)
+    {
+        byte[] keyAndIV = keyDerivation.deriveKey(password, salt);
+        keyEncryptionKey = new byte[KeyDerivation.KEY_LENGTH];
+        System.arraycopy(keyAndIV, 0, keyEncryptionKey, 0, keyEncryptionKey.length);
+        byte[] derivedIV = new byte[KeyDerivation.IV_LENGTH];
+        System.arraycopy(keyAndIV, keyEncryptionKey.length, derivedIV, 0, derivedIV.length);
+        return derivedIV;
+    }
+
+    private void setKey(byte[] key, byte[] iv)
+    {
+        this.key = key;
+        this.iv = iv;
+        encryptCipher = cipherProvider.newCipher(true, key, iv);
+        decryptCipher = cipherProvider.newCipher(false, key, iv);
+    }
+
+    /**
+     * Encrypt the data with a new random key from now on
+     */
+    private void newDataKey() throws CryptoException
+    {
+        byte[] newKey = new byte[KeyDerivation.KEY_LENGTH];
+        byte[] newIV = new byte[KeyDerivation.IV_LENGTH];
+        generateRandomBytes(newKey);
+        generateRandomBytes(newIV);
+        setKey(newKey, newIV);
+        wrapKey();
+    }
+
+    private void wrapKey()
+    {
+        byte[] keyAndIV = new byte[key.length + iv.length];
+        System.arraycopy(key, 0, keyAndIV, 0, key.length);
+        System.arraycopy(iv, 0, keyAndIV, key.length, iv.length);
+        Wrapper wrapper = new AESWrapEngine();
+        wrapper.init(true, new KeyParameter(keyEncryptionKey));
+        wrappedKey = wrapper.wrap(keyAndIV, 0, keyAndIV.length);
+        Arrays.fill(keyAndIV, (byte) 0);
+    }
+
+    /**
+     * Take the data key out of what getWrappedKey() returned when the
+     * database was written
+     * @throws InvalidPasswordException if the password doesn't unwrap it
+     */
+    public void unwrapKey(byte[] wrappedKey) throws InvalidPasswordException
+    {
+        byte[] keyAndIV;
+        try
+        {
+            Wrapper wrapper = new AESWrapEngine();
+            wrapper.init(false, new KeyParameter(keyEncryptionKey));
+            keyAndIV = wrapper.unwrap(wrappedKey, 0, wrappedKey.length);
+        }
+        catch (InvalidCipherTextException e)
+        {
+            throw new InvalidPasswordException();
+        }
+        if (keyAndIV.length != KeyDerivation.KEY_LENGTH + KeyDerivation.IV_LENGTH)
+        {
+            throw new InvalidPasswordException();
+        }
+        byte[] dataKey = new byte[KeyDerivation.KEY_LENGTH];
+        byte[] dataIV = new byte[KeyDerivation.IV_LENGTH];
+        System.arraycopy(keyAndIV, 0, dataKey, 0, dataKey.length);
+        System.arraycopy(keyAndIV, dataKey.length, dataIV, 0, dataIV.length);
+        Arrays.fill(keyAndIV, (byte) 0);
+        setKey(dataKey, dataIV);
+        this.wrappedKey = wrappedKey;
+    }
+
+    /**
+     * @return the data key wrapped with the key derived from the password,
+     * or null if the data is encrypted with the derived key itself
+     */
+    public byte[] getWrappedKey()
+    {
+        return wrappedKey;
+    }
+
+    /**
+     * Check password is the one the key in use was derived from. The key is
+     * derived again, nothing is decrypted.
+     */
+    public boolean verifyPassword(char[] password)
+    {
+        byte[] keyAndIV = keyDerivation.deriveKey(password, salt);
+        try
+        {
+            return constantTimeEquals(keyAndIV, keyEncryptionKey, keyEncryptionKey.length);
+        }
+        finally
+        {
+            Arrays.fill(keyAndIV, (byte) 0);
+        }
+    }
+
+    /**
+     * Compare the first length bytes of a and b. The time taken doesn't
+     * depend on where they differ so it gives nothing away about the key.
+     */
+    private static boolean constantTimeEquals(byte[] a, byte[] b, int length)
+    {
+        if (a.length < length || b.length < length)
+        {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < length; i++)
+        {
+            difference |= a[i] ^ b[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Change the password. If the data key is wrapped only the wrapped key
+     * changes and everything already encrypted can still be decrypted.
+     * Otherwise the data gets a wrapped key of its own, and the key is
+     * derived the default way if it was derived the legacy way, so
+     * everything has to be encrypted again.
+     */
+    public void changePassword(char[] password) throws CryptoException
+    {
+        changePassword(password, KeyDerivation.DEFAULT);
+    }
+
+    /**
+     * Change the password the same way as changePassword(char[]) but derive
+     * the key with upgrade instead of the default if it was derived the
+     * legacy way
+     */
+    public void changePassword(char[] password, KeyDerivation upgrade) throws CryptoException
+    {
+        if (wrappedKey != null)
+        {
+            deriveKeyEncryptionKey(password);
+            wrapKey();
+        }
+        else
+        {
+            if (keyDerivation.equals(KeyDerivation.LEGACY))
+            {
+                keyDerivation = upgrade;
+            }
+            deriveKeyEncryptionKey(password);
+            newDataKey();
+        }
+    }
+
+    /**
+     * @return a copy of this service with the password changed the same way
+     * as changePassword(). This one carries on using the old password.
+     */
+    public EncryptionService withPassword(char[] password) throws CryptoException
+    {
+        return withPassword(password, KeyDerivation.DEFAULT);
+    }
+
+    /**
+     * @return a copy of this service with the password changed the same way
+     * as changePassword(char[], KeyDerivation)
+     */
+    public EncryptionService withPassword(char[] password, KeyDerivation upgrade) throws CryptoException
+    {
+        EncryptionService changed = new EncryptionService(this);
+        changed.changePassword(password, upgrade);
+        return changed;
     }
 
     private byte[] generateSalt() throws NoSuchAlgorithmException, NoSuchProviderException
@@ -94,14 +330,7 @@ public class EncryptionService
     {
         byte[] encryptedBytes = new byte[encryptCipher.getOutputSize(plainText.length)];
         int outputLength = encryptCipher.processBytes(plainText, 0, plainText.length, encryptedBytes, 0);
-        try
-        {
-            outputLength += encryptCipher.doFinal(encryptedBytes, outputLength);
-        }
-        catch (InvalidCipherTextException e)
-        {
-            throw new CryptoException(e);
-        }
+        outputLength += encryptCipher.doFinal(encryptedBytes, outputLength);
 
         byte[] results = new byte[outputLength];
         System.arraycopy(encryptedBytes, 0, results, 0, outputLength);
@@ -112,23 +341,247 @@ public class EncryptionService
     {
         byte[] decryptedBytes = new byte[decryptCipher.getOutputSize(encryptedBytes.length)];
         int outputLength = decryptCipher.processBytes(encryptedBytes, 0, encryptedBytes.length, decryptedBytes, 0);
-        try
+        outputLength += decryptCipher.doFinal(decryptedBytes, outputLength);
+
+        byte[] results = new byte[outputLength];
+        System.arraycopy(decryptedBytes, 0, results, 0, outputLength);
+        return results;
+    }
+
+    /**
+     * Returns a stream that decrypts encryptedStream as it is read. If the
+     * cipher rejects the data a CryptoIOException is thrown from read().
+     */
+    public InputStream decrypt(InputStream encryptedStream)
+    {
+        return new DecryptionInputStream(encryptedStream, decryptCipher);
+    }
+
+    /**
+     * Returns a stream that decrypts the remaining bytes of encryptedBuffer,
+     * which can be a mapped file, without copying them onto the heap first
+     */
+    public InputStream decrypt(ByteBuffer encryptedBuffer)
+    {
+        return decrypt(new ByteBufferInputStream(encryptedBuffer));
+    }
+
+    /**
+     * Encrypt plainText on its own using a freshly generated random IV. The
+     * IV is returned in front of the ciphertext so that the result can be
+     * decrypted with decryptWithIV() independently of anything else
+     * encrypted with this key.
+     */
+    public byte[] encryptWithRandomIV(byte[] plainText) throws CryptoException
+    {
+        byte[] iv = new byte[IV_LENGTH];
+        generateRandomBytes(iv);
+        AESCipher cipher = cipherProvider.newCipher(true, key, iv);
+        byte[] encryptedBytes = new byte[getEncryptedLengthWithIV(plainText.length)];
+        System.arraycopy(iv, 0, encryptedBytes, 0, IV_LENGTH);
+        int outputLength = cipher.processBytes(plainText, 0, plainText.length, encryptedBytes, IV_LENGTH);
+        cipher.doFinal(encryptedBytes, IV_LENGTH + outputLength);
+        return encryptedBytes;
+    }
+
+    private synchronized void generateRandomBytes(byte[] bytes) throws CryptoException
+    {
+        if (ivGenerator == null)
         {
-            outputLength += decryptCipher.doFinal(decryptedBytes, outputLength);
+            try
+            {
+                ivGenerator = SecureRandom.getInstance(randomAlgorithm, "SUN");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new CryptoException(e);
+            }
+            catch (NoSuchProviderException e)
+            {
+                throw new CryptoException(e);
+            }
         }
-        catch (InvalidCipherTextException e)
+        ivGenerator.nextBytes(bytes);
+    }
+
+    /**
+     * Decrypt something encrypted with encryptWithRandomIV()
+     */
+    public byte[] decryptWithIV(byte[] ivAndEncryptedBytes) throws CryptoException
+    {
+        return decryptWithIV(ByteBuffer.wrap(ivAndEncryptedBytes));
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer filled by encryptWithRandomIV().
+     * A buffer that isn't backed by an array, e.g. a mapped file, is passed
+     * to the cipher a chunk at a time rather than being copied as a whole.
+     */
+    public byte[] decryptWithIV(ByteBuffer ivAndEncryptedBytes) throws CryptoException
+    {
+        byte[] iv = new byte[IV_LENGTH];
+        ivAndEncryptedBytes.get(iv);
+        AESCipher cipher = cipherProvider.newCipher(false, key, iv);
+        int encryptedLength = ivAndEncryptedBytes.remaining();
+        byte[] decryptedBytes = new byte[cipher.getOutputSize(encryptedLength)];
+        int outputLength = 0;
+        if (ivAndEncryptedBytes.hasArray())
         {
-            throw new CryptoException(e);
+            outputLength = cipher.processBytes(ivAndEncryptedBytes.array(), ivAndEncryptedBytes.arrayOffset() + ivAndEncryptedBytes.position(), encryptedLength, decryptedBytes, 0);
+            ivAndEncryptedBytes.position(ivAndEncryptedBytes.limit());
+        }
+        else
+        {
+            byte[] chunk = new byte[Math.min(encryptedLength, CHUNK_SIZE)];
+            while (ivAndEncryptedBytes.hasRemaining())
+            {
+                int chunkLength = Math.min(chunk.length, ivAndEncryptedBytes.remaining());
+                ivAndEncryptedBytes.get(chunk, 0, chunkLength);
+                outputLength += cipher.processBytes(chunk, 0, chunkLength, decryptedBytes, outputLength);
+            }
         }
+        outputLength += cipher.doFinal(decryptedBytes, outputLength);
 
         byte[] results = new byte[outputLength];
         System.arraycopy(decryptedBytes, 0, results, 0, outputLength);
         return results;
     }
 
+    /**
+     * Encrypt the remaining bytes of plainText with a random IV into
+     * cipherText the same way as encryptWithRandomIV(byte[]). cipherText must
+     * have room for getEncryptedLengthWithIV(plainText.remaining()) bytes.
+     * The only allocation is the cipher taking on the new IV.
+     * @return the number of bytes put into cipherText
+     */
+    public int encryptWithRandomIV(ByteBuffer plainText, ByteBuffer cipherText, ScratchBuffer scratch) throws CryptoException
+    {
+        generateRandomBytes(scratch.iv);
+        cipherText.put(scratch.iv);
+        return IV_LENGTH + process(getCipher(true, scratch), plainText, cipherText, scratch);
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer filled by encryptWithRandomIV()
+     * into plainText. plainText must have room for as many bytes as there
+     * are in ivAndCipherText.
+     * @return the number of bytes put into plainText
+     */
+    public int decryptWithIV(ByteBuffer ivAndCipherText, ByteBuffer plainText, ScratchBuffer scratch) throws CryptoException
+    {
+        ivAndCipherText.get(scratch.iv);
+        return process(getCipher(false, scratch), ivAndCipherText, plainText, scratch);
+    }
+
+    /**
+     * Get the scratch buffer's cipher ready for its IV. The ciphers are made
+     * again if the key has changed since they were last used.
+     */
+    private AESCipher getCipher(boolean forEncryption, ScratchBuffer scratch)
+    {
+        if (scratch.key != key)
+        {
+            scratch.key = key;
+            scratch.encryptCipher = null;
+            scratch.decryptCipher = null;
+        }
+        AESCipher cipher = forEncryption ? scratch.encryptCipher : scratch.decryptCipher;
+        if (cipher == null)
+        {
+            cipher = cipherProvider.newCipher(forEncryption, key, scratch.iv);
+            if (forEncryption)
+            {
+                scratch.encryptCipher = cipher;
+            }
+            else
+            {
+                scratch.decryptCipher = cipher;
+            }
+        }
+        else
+        {
+            cipher.init(scratch.iv);
+        }
+        return cipher;
+    }
+
+    /**
+     * Run the remaining bytes of in through cipher into out. When both
+     * buffers are backed by arrays the cipher works on them directly,
+     * otherwise the data goes through the scratch buffer a chunk at a time.
+     */
+    private static int process(AESCipher cipher, ByteBuffer in, ByteBuffer out, ScratchBuffer scratch) throws CryptoException
+    {
+        if (out.remaining() < cipher.getOutputSize(in.remaining()))
+        {
+            throw new BufferOverflowException();
+        }
+
+        int outputLength;
+        if (in.hasArray() && out.hasArray())
+        {
+            int outStart = out.arrayOffset() + out.position();
+            outputLength = cipher.processBytes(in.array(), in.arrayOffset() + in.position(), in.remaining(), out.array(), outStart);
+            in.position(in.limit());
+            outputLength += cipher.doFinal(out.array(), outStart + outputLength);
+            out.position(out.position() + outputLength);
+            return outputLength;
+        }
+
+        // Input goes into the first half of the scratch buffer and the
+        // cipher writes its output to the second half, which has room for
+        // the extra blocks a cipher can hold back and add at the end
+        byte[] buffer = scratch.buffer;
+        int outputStart = buffer.length / 2;
+        int chunkLength = outputStart - 2 * BLOCK_SIZE;
+        outputLength = 0;
+        while (in.hasRemaining())
+        {
+            int length = Math.min(chunkLength, in.remaining());
+            in.get(buffer, 0, length);
+            int processed = cipher.processBytes(buffer, 0, length, buffer, outputStart);
+            out.put(buffer, outputStart, processed);
+            outputLength += processed;
+        }
+        int processed = cipher.doFinal(buffer, outputStart);
+        out.put(buffer, outputStart, processed);
+        return outputLength + processed;
+    }
+
+    /**
+     * @return the number of bytes encryptWithRandomIV() will return for
+     * plainLength bytes of cleartext
+     */
+    public static int getEncryptedLengthWithIV(int plainLength)
+    {
+        return IV_LENGTH + (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns a value derived from the key that can be stored alongside the
+     * salt. Comparing it with the stored value shows whether the password is
+     * right without having to decrypt anything. It's a MAC keyed with the key
+     * derived from the password so nothing about the key can be learnt from
+     * it.
+     */
+    public byte[] getKeyCheckValue()
+    {
+        HMac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(keyEncryptionKey));
+        mac.update(KEY_CHECK_INPUT, 0, KEY_CHECK_INPUT.length);
+        byte[] keyCheckValue = new byte[mac.getMacSize()];
+        mac.doFinal(keyCheckValue, 0);
+        return keyCheckValue;
+    }
+
     public byte[] getSalt()
     {
         return salt;
     }
 
+    public KeyDerivation getKeyDerivation()
+    {
+        return keyDerivation;
+    }
+
 }
@@ -0,0 +1,139 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES from the JRE's own javax.crypto provider. Recent HotSpot VMs use the
+ * processor's AES instructions for it. Older JREs without the unlimited
+ * strength policy files refuse 256 bit keys so this can't be used there.
+ * PKCS5Padding is the same as PKCS7 padding for AES's 16 byte blocks.
+ */
+class JCECipherProvider extends CipherProvider
+{
+
+    String getName()
+    {
+        return "JCE";
+    }
+
+    AESCipher newCipher(boolean forEncryption, byte[] key, byte[] iv)
+    {
+        return new JCECipher(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), iv);
+    }
+
+    private static class JCECipher implements AESCipher
+    {
+        private int mode;
+        private SecretKeySpec keySpec;
+        private IvParameterSpec ivSpec;
+        private Cipher cipher;
+
+        JCECipher(int mode, SecretKeySpec keySpec, byte[] iv)
+        {
+            this.mode = mode;
+            this.keySpec = keySpec;
+            try
+            {
+                cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("AES isn't available from the JCE", e);
+            }
+            init(iv);
+        }
+
+        public void init(byte[] iv)
+        {
+            ivSpec = new IvParameterSpec(iv);
+            reset();
+        }
+
+        public int getOutputSize(int length)
+        {
+            return cipher.getOutputSize(length);
+        }
+
+        public int processBytes(byte[] in, int inOff, int length, byte[] out, int outOff)
+        {
+            try
+            {
+                return cipher.update(in, inOff, length, out, outOff);
+            }
+            catch (ShortBufferException e)
+            {
+                // The JCE's estimate of the space needed can be more than is
+                // really used at the end of a buffer
+                byte[] result = cipher.update(in, inOff, length);
+                if (result == null)
+                {
+                    return 0;
+                }
+                System.arraycopy(result, 0, out, outOff, result.length);
+                return result.length;
+            }
+        }
+
+        public int doFinal(byte[] out, int outOff) throws CryptoException
+        {
+            try
+            {
+                try
+                {
+                    return cipher.doFinal(out, outOff);
+                }
+                catch (ShortBufferException e)
+                {
+                    byte[] result = cipher.doFinal();
+                    System.arraycopy(result, 0, out, outOff, result.length);
+                    return result.length;
+                }
+            }
+            catch (GeneralSecurityException e)
+            {
+                // Like BouncyCastle the cipher is ready to start again even
+                // when the padding was wrong
+                reset();
+                throw new CryptoException(e);
+            }
+        }
+
+        public void reset()
+        {
+            try
+            {
+                cipher.init(mode, keySpec, ivSpec);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("AES isn't available from the JCE", e);
+            }
+        }
+    }
+
+}
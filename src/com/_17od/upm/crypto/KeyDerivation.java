@@ -0,0 +1,334 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Describes how the key is derived from the password: the algorithm and how
+ * expensive it's made. It's stored in the database header so the cost can be
+ * raised over time without breaking existing databases.
+ */
+public final class KeyDerivation
+{
+    private static final Logger log = LoggerFactory.getLogger(KeyDerivation.class);
+
+    /** PKCS #12 with SHA-512, what every database used before the KDF was recorded */
+    public static final int PKCS12 = 0;
+    public static final int PBKDF2_SHA512 = 1;
+    public static final int SCRYPT = 2;
+
+    /** The key derivation used for databases that don't record one */
+    public static final KeyDerivation LEGACY = new KeyDerivation(PKCS12, 5000, 0, 0);
+    /** Used for new databases when no calibrated settings are given */
+    public static final KeyDerivation DEFAULT = scrypt(14, 8, 1);
+
+    static final int KEY_LENGTH = 32;
+    static final int IV_LENGTH = 16;
+
+    // the version of the layout written by toBytes()
+    private static final int DESCRIPTOR_VERSION = 1;
+    private static final int MIN_PBKDF2_ITERATIONS = 10000;
+    // the most iterations of PBKDF2 or PKCS #12 a database can ask for
+    private static final int MAX_ITERATIONS = 10000000;
+    private static final int MIN_SCRYPT_LOG2_N = 14;
+    private static final int MAX_SCRYPT_LOG2_N = 20;
+    private static final int SCRYPT_R = 8;
+    private static final int MAX_SCRYPT_LANES = 4;
+    private static final long MAX_SCRYPT_MEMORY = 256L * 1024 * 1024;
+
+    private final int algorithm;
+    // the iteration count, or log2 of scrypt's N
+    private final int cost;
+    private final int blockSize;
+    private final int parallelism;
+
+    private KeyDerivation(int algorithm, int cost, int blockSize, int parallelism)
+    {
+        this.algorithm = algorithm;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    public static KeyDerivation pbkdf2(int iterations)
+    {
+        if (iterations < 1)
+        {
+            throw new IllegalArgumentException("PBKDF2 needs at least one iteration");
+        }
+        return new KeyDerivation(PBKDF2_SHA512, iterations, 0, 0);
+    }
+
+    /**
+     * @param log2N log2 of the CPU and memory cost N
+     * @param r the block size
+     * @param p the number of lanes, each of which is run on its own processor
+     * if there are enough
+     */
+    public static KeyDerivation scrypt(int log2N, int r, int p)
+    {
+        // A lane's memory has to fit in an array
+        if (log2N < 1 || log2N > 30 || r < 1 || p < 1 || (long) r * p >= 1 << 30 || (128L * r << log2N) > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Invalid scrypt parameters");
+        }
+        return new KeyDerivation(SCRYPT, log2N, r, p);
+    }
+
+    public int getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    /**
+     * Derive the key and the IV for the fixed IV ciphers from password and
+     * salt
+     * @return the key followed by the IV
+     */
+    byte[] deriveKey(char[] password, byte[] salt)
+    {
+        if (algorithm == PKCS12)
+        {
+            PBEParametersGenerator keyGenerator = new PKCS12ParametersGenerator(new SHA512Digest());
+            keyGenerator.init(PKCS12ParametersGenerator.PKCS12PasswordToBytes(password), salt, cost);
+            ParametersWithIV keyParams = (ParametersWithIV) keyGenerator.generateDerivedParameters(KEY_LENGTH * 8, IV_LENGTH * 8);
+            byte[] keyAndIV = new byte[KEY_LENGTH + IV_LENGTH];
+            System.arraycopy(((KeyParameter) keyParams.getParameters()).getKey(), 0, keyAndIV, 0, KEY_LENGTH);
+            System.arraycopy(keyParams.getIV(), 0, keyAndIV, KEY_LENGTH, IV_LENGTH);
+            return keyAndIV;
+        }
+
+        byte[] passwordBytes = toUTF8(password);
+        try
+        {
+            if (algorithm == PBKDF2_SHA512)
+            {
+                return Pbkdf2.generate(new SHA512Digest(), passwordBytes, salt, cost, KEY_LENGTH + IV_LENGTH);
+            }
+            return Scrypt.generate(passwordBytes, salt, 1 << cost, blockSize, parallelism, KEY_LENGTH + IV_LENGTH);
+        }
+        finally
+        {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private static byte[] toUTF8(char[] password)
+    {
+        ByteBuffer encoded = Charset.forName("UTF-8").encode(CharBuffer.wrap(password));
+        byte[] passwordBytes = new byte[encoded.remaining()];
+        encoded.get(passwordBytes);
+        if (encoded.hasArray())
+        {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+        return passwordBytes;
+    }
+
+    /**
+     * The descriptor as it's stored in the database header
+     */
+    public byte[] toBytes()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(DESCRIPTOR_VERSION);
+            out.writeByte(algorithm);
+            out.writeInt(cost);
+            if (algorithm == SCRYPT)
+            {
+                out.writeInt(blockSize);
+                out.writeInt(parallelism);
+            }
+        }
+        catch (IOException e)
+        {
+            // Can't happen writing to memory
+            throw new IllegalStateException(e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the descriptor written by toBytes() or null if it isn't one
+     * this version understands
+     */
+    public static KeyDerivation fromBytes(byte[] descriptor)
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(descriptor));
+        try
+        {
+            if (in.readByte() != DESCRIPTOR_VERSION)
+            {
+                return null;
+            }
+            int algorithm = in.readByte();
+            int cost = in.readInt();
+            KeyDerivation keyDerivation;
+            switch (algorithm)
+            {
+                case PKCS12:
+                    keyDerivation = new KeyDerivation(PKCS12, cost, 0, 0);
+                    break;
+                case PBKDF2_SHA512:
+                    keyDerivation = pbkdf2(cost);
+                    break;
+                case SCRYPT:
+                    keyDerivation = scrypt(cost, in.readInt(), in.readInt());
+                    break;
+                default:
+                    return null;
+            }
+            return in.available() == 0 && keyDerivation.isWithinLimits() ? keyDerivation : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return false if deriving the key would take more time or memory than
+     * calibrate() ever asks for. A header that's been tampered with or
+     * corrupted could otherwise make opening the database run out of memory
+     * or never finish.
+     */
+    private boolean isWithinLimits()
+    {
+        if (algorithm == SCRYPT)
+        {
+            return cost <= MAX_SCRYPT_LOG2_N && parallelism <= MAX_SCRYPT_LANES
+                    && (128L * blockSize << cost) * parallelism <= MAX_SCRYPT_MEMORY;
+        }
+        return cost >= 1 && cost <= MAX_ITERATIONS;
+    }
+
+    /**
+     * Find the cost for algorithm that makes deriving a key take about
+     * targetMillis on this machine. The cost is never set below what's
+     * considered the minimum safe value however slow the machine is, and
+     * scrypt is limited to a quarter of the heap or 256MB, whichever is
+     * less.
+     */
+    public static KeyDerivation calibrate(int algorithm, long targetMillis)
+    {
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+        KeyDerivation calibrated;
+        if (algorithm == PBKDF2_SHA512)
+        {
+            KeyDerivation sample = pbkdf2(MIN_PBKDF2_ITERATIONS);
+            long time = time(sample, password, salt);
+            long iterations = MIN_PBKDF2_ITERATIONS * targetMillis * 1000000 / Math.max(time, 1);
+            // A round number is easier to read in the logs
+            iterations = iterations / 1000 * 1000;
+            calibrated = pbkdf2((int) Math.min(Math.max(iterations, MIN_PBKDF2_ITERATIONS), MAX_ITERATIONS));
+        }
+        else if (algorithm == SCRYPT)
+        {
+            // The lanes run side by side so the time is about the same
+            // whatever p is, as long as there's a processor for each
+            int p = Math.min(Runtime.getRuntime().availableProcessors(), MAX_SCRYPT_LANES);
+            int sampleLog2N = 12;
+            long time = time(scrypt(sampleLog2N, SCRYPT_R, p), password, salt);
+            // The time doubles with each step of log2 N, the step taking
+            // it nearest to the target is picked
+            double steps = Math.log((double) targetMillis * 1000000 / Math.max(time, 1)) / Math.log(2);
+            int log2N = sampleLog2N + (int) Math.round(steps);
+            long maxMemory = Math.min(MAX_SCRYPT_MEMORY, Runtime.getRuntime().maxMemory() / 4);
+            while (log2N > MIN_SCRYPT_LOG2_N && (128L * SCRYPT_R << log2N) * p > maxMemory)
+            {
+                log2N--;
+            }
+            calibrated = scrypt(Math.min(Math.max(log2N, MIN_SCRYPT_LOG2_N), MAX_SCRYPT_LOG2_N), SCRYPT_R, p);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Can't calibrate key derivation algorithm " + algorithm);
+        }
+        log.info("Calibrated the key derivation for " + targetMillis + "ms: " + calibrated);
+        return calibrated;
+    }
+
+    /**
+     * @return how long the second of two runs takes, in nanoseconds. The
+     * first warms the code up.
+     */
+    private static long time(KeyDerivation keyDerivation, char[] password, byte[] salt)
+    {
+        keyDerivation.deriveKey(password, salt);
+        long start = System.nanoTime();
+        keyDerivation.deriveKey(password, salt);
+        return System.nanoTime() - start;
+    }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof KeyDerivation))
+        {
+            return false;
+        }
+        KeyDerivation other = (KeyDerivation) o;
+        return algorithm == other.algorithm && cost == other.cost && blockSize == other.blockSize && parallelism == other.parallelism;
+    }
+
+    public int hashCode()
+    {
+        return ((algorithm * 31 + cost) * 31 + blockSize) * 31 + parallelism;
+    }
+
+    public String toString()
+    {
+        switch (algorithm)
+        {
+            case PKCS12:
+                return "PKCS12-SHA512 (" + cost + " iterations)";
+            case PBKDF2_SHA512:
+                return "PBKDF2-HMAC-SHA512 (" + cost + " iterations)";
+            default:
+                return "scrypt (N=2^" + cost + ", r=" + blockSize + ", p=" + parallelism + ")";
+        }
+    }
+
+}
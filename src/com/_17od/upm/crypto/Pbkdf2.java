@@ -0,0 +1,74 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * PBKDF2 from PKCS #5 v2.0 (RFC 2898) with any HMAC digest. The
+ * BouncyCastle version in use only has it with SHA-1.
+ */
+final class Pbkdf2
+{
+
+    private Pbkdf2()
+    {
+    }
+
+    static byte[] generate(Digest digest, byte[] password, byte[] salt, int iterations, int length)
+    {
+        HMac mac = new HMac(digest);
+        mac.init(new KeyParameter(password));
+        int macSize = mac.getMacSize();
+        byte[] u = new byte[macSize];
+        byte[] t = new byte[macSize];
+        byte[] counter = new byte[4];
+        byte[] derived = new byte[length];
+
+        for (int block = 1, offset = 0; offset < length; block++, offset += macSize)
+        {
+            counter[0] = (byte) (block >>> 24);
+            counter[1] = (byte) (block >>> 16);
+            counter[2] = (byte) (block >>> 8);
+            counter[3] = (byte) block;
+
+            // The key stays set up in the mac between doFinal() calls
+            mac.update(salt, 0, salt.length);
+            mac.update(counter, 0, counter.length);
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, t, 0, macSize);
+            for (int i = 1; i < iterations; i++)
+            {
+                mac.update(u, 0, macSize);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < macSize; j++)
+                {
+                    t[j] ^= u[j];
+                }
+            }
+            System.arraycopy(t, 0, derived, offset, Math.min(macSize, length - offset));
+        }
+        return derived;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+/**
+ * Working space for the ByteBuffer methods of EncryptionService. Data in
+ * buffers that aren't backed by an array, e.g. direct or mapped buffers, is
+ * passed through it on its way to and from the cipher, and the ciphers are
+ * kept here between calls. A ScratchBuffer must only be used by one thread
+ * at a time.
+ */
+public final class ScratchBuffer
+{
+    public static final int DEFAULT_SIZE = 16 * 1024;
+    private static final int MIN_SIZE = 8 * AESCipher.BLOCK_SIZE;
+
+    final byte[] buffer;
+    final byte[] iv = new byte[AESCipher.BLOCK_SIZE];
+    // the key the ciphers were set up with
+    byte[] key;
+    AESCipher encryptCipher;
+    AESCipher decryptCipher;
+
+    public ScratchBuffer()
+    {
+        this(DEFAULT_SIZE);
+    }
+
+    public ScratchBuffer(int size)
+    {
+        if (size < MIN_SIZE)
+        {
+            throw new IllegalArgumentException("A scratch buffer must be at least " + MIN_SIZE + " bytes");
+        }
+        buffer = new byte[size];
+    }
+
+}
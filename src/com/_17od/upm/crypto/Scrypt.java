@@ -0,0 +1,241 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+/**
+ * The scrypt key derivation function (RFC 7914). Each of the p lanes needs
+ * 128 * r * n bytes of memory, which is what makes it expensive to attack
+ * with custom hardware. The lanes are independent so they're worked out on
+ * as many processors as there are.
+ */
+final class Scrypt
+{
+
+    private Scrypt()
+    {
+    }
+
+    static byte[] generate(byte[] password, byte[] salt, final int n, final int r, int p, int length)
+    {
+        if (n < 2 || (n & (n - 1)) != 0)
+        {
+            throw new IllegalArgumentException("n must be a power of 2 greater than 1");
+        }
+        final int laneLength = 128 * r;
+        final byte[] b = Pbkdf2.generate(new SHA256Digest(), password, salt, 1, p * laneLength);
+
+        int threads = Math.min(p, Runtime.getRuntime().availableProcessors());
+        if (threads == 1)
+        {
+            for (int lane = 0; lane < p; lane++)
+            {
+                roMix(b, lane * laneLength, r, n);
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "UPM key derivation lane");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try
+            {
+                ArrayList<Future<?>> lanes = new ArrayList<Future<?>>();
+                for (int lane = 0; lane < p; lane++)
+                {
+                    final int offset = lane * laneLength;
+                    lanes.add(executor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            roMix(b, offset, r, n);
+                        }
+                    }));
+                }
+                waitFor(lanes);
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+
+        return Pbkdf2.generate(new SHA256Digest(), password, b, 1, length);
+    }
+
+    /**
+     * Wait for all the lanes to finish. An interrupt doesn't stop the wait as
+     * the key is no use without every lane, it's passed on afterwards.
+     */
+    private static void waitFor(ArrayList<Future<?>> lanes)
+    {
+        boolean interrupted = false;
+        for (int i = 0; i < lanes.size(); i++)
+        {
+            while (true)
+            {
+                try
+                {
+                    lanes.get(i).get();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw (Error) e.getCause();
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Mix the 128 * r bytes of b from offset in place
+     */
+    private static void roMix(byte[] b, int offset, int r, int n)
+    {
+        int blockInts = 32 * r;
+        int[] x = new int[blockInts];
+        int[] y = new int[blockInts];
+        int[] v = new int[blockInts * n];
+        int[] salsa = new int[16];
+
+        for (int i = 0; i < blockInts; i++)
+        {
+            int p = offset + i * 4;
+            x[i] = (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            System.arraycopy(x, 0, v, i * blockInts, blockInts);
+            blockMix(x, y, salsa, r);
+        }
+        for (int i = 0; i < n; i++)
+        {
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            int vOffset = j * blockInts;
+            for (int k = 0; k < blockInts; k++)
+            {
+                x[k] ^= v[vOffset + k];
+            }
+            blockMix(x, y, salsa, r);
+        }
+        for (int i = 0; i < blockInts; i++)
+        {
+            int p = offset + i * 4;
+            b[p] = (byte) x[i];
+            b[p + 1] = (byte) (x[i] >>> 8);
+            b[p + 2] = (byte) (x[i] >>> 16);
+            b[p + 3] = (byte) (x[i] >>> 24);
+        }
+    }
+
+    private static void blockMix(int[] b, int[] y, int[] x, int r)
+    {
+        System.arraycopy(b, (2 * r - 1) * 16, x, 0, 16);
+        for (int i = 0; i < 2 * r; i++)
+        {
+            for (int k = 0; k < 16; k++)
+            {
+                x[k] ^= b[i * 16 + k];
+            }
+            salsa208(x);
+            // Even blocks go in the first half and odd ones in the second
+            int yOffset = ((i & 1) * r + (i >>> 1)) * 16;
+            System.arraycopy(x, 0, y, yOffset, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa208(int[] b)
+    {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3];
+        int x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11];
+        int x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2)
+        {
+            // columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3;
+        b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11;
+        b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads and writes AccountInformation in the compact record format used
+ * since database version 4. Each record is five length-prefixed fields:
+ * account name, user id, password, url and notes. The account name and
+ * password are stored as UTF-8; the other fields are already held as bytes
+ * and are written out unchanged.
+ */
+final class AccountRecords
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private AccountRecords()
+    {
+    }
+
+    static void write(DataOutput out, AccountInformation ai) throws IOException
+    {
+        writeString(out, ai.getAccountName());
+        writeField(out, ai.getUserId());
+        writeField(out, encode(ai.getPassword()));
+        writeField(out, ai.getUrl());
+        writeField(out, ai.getNotes());
+    }
+
+    static AccountInformation read(DataInput in) throws IOException
+    {
+        String accountName = readString(in);
+        byte[] userId = readField(in);
+        char[] password = decode(readField(in));
+        byte[] url = readField(in);
+        byte[] notes = readField(in);
+        return new AccountInformation(accountName, userId, password, url, notes);
+    }
+
+    static byte[] toBytes(AccountInformation ai) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        write(out, ai);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    static AccountInformation fromBytes(byte[] record) throws IOException
+    {
+        return fromBytes(record, record.length);
+    }
+
+    static AccountInformation fromBytes(byte[] record, int length) throws IOException
+    {
+        return read(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException
+    {
+        writeField(out, s.getBytes(UTF8));
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        return new String(readField(in), UTF8);
+    }
+
+    /**
+     * @return the number of bytes writeString() will write for s
+     */
+    static int getStringLength(String s)
+    {
+        return 4 + s.getBytes(UTF8).length;
+    }
+
+    private static void writeField(DataOutput out, byte[] field) throws IOException
+    {
+        if (field == null)
+        {
+            field = new byte[0];
+        }
+        out.writeInt(field.length);
+        out.write(field);
+    }
+
+    private static byte[] readField(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new IOException("Corrupt account record (field length " + length + ")");
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return field;
+    }
+
+    /**
+     * Encode the password without going through a String so it doesn't
+     * linger on the heap in an immutable object
+     */
+    private static byte[] encode(char[] chars)
+    {
+        if (chars == null)
+        {
+            return new byte[0];
+        }
+        ByteBuffer bb = UTF8.encode(CharBuffer.wrap(chars));
+        byte[] bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        return bytes;
+    }
+
+    private static char[] decode(byte[] bytes)
+    {
+        CharBuffer cb = UTF8.decode(ByteBuffer.wrap(bytes));
+        char[] chars = new char[cb.remaining()];
+        cb.get(chars);
+        return chars;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the blocks of records in a database file. The codec used is
+ * recorded in the file header as its id followed by its level.
+ */
+public abstract class Codec
+{
+    /** No compression at all, the fastest when the database is small */
+    public static final int STORE = 0;
+    /** java.util.zip.Deflater at levels 0-9 or Deflater.DEFAULT_COMPRESSION */
+    public static final int DEFLATE = 1;
+    /** A fast LZ77 compressor that trades some ratio for speed */
+    public static final int LZ = 2;
+
+    private int id;
+    private int level;
+
+    Codec(int id, int level)
+    {
+        this.id = id;
+        this.level = level;
+    }
+
+    /**
+     * @return the codec with the given id or null if there isn't one
+     */
+    static Codec getInstance(int id, int level)
+    {
+        switch (id)
+        {
+            case STORE:
+                return new StoreCodec();
+            case DEFLATE:
+                if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+                {
+                    return null;
+                }
+                return new DeflateCodec(level);
+            case LZ:
+                return new LZCodec();
+            default:
+                return null;
+        }
+    }
+
+    int getId()
+    {
+        return id;
+    }
+
+    int getLevel()
+    {
+        return level;
+    }
+
+    abstract byte[] compress(byte[] data);
+
+    byte[] decompress(byte[] data) throws IOException
+    {
+        return decompress(data, data.length);
+    }
+
+    /**
+     * Decompress the first length bytes of data, which can be a buffer
+     * that's reused for each block
+     */
+    abstract byte[] decompress(byte[] data, int length) throws IOException;
+
+}
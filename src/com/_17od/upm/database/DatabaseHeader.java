@@ -0,0 +1,124 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The fields stored in the clear after the salt since database version 6.
+ * The header is its length followed by fields made up of a one byte tag, a
+ * two byte length and the value. Fields can be added without a new database
+ * version as readers skip any tags they don't know, unless a reader that
+ * skipped them would get the key wrong. The wrapped key came with version 9
+ * for that reason.
+ */
+final class DatabaseHeader
+{
+    static final int KEY_CHECK = 1;
+    static final int CODEC = 2;
+    static final int KDF = 3;
+    static final int WRAPPED_KEY = 4;
+
+    private final LinkedHashMap<Integer, byte[]> fields = new LinkedHashMap<Integer, byte[]>();
+
+    void put(int tag, byte[] value)
+    {
+        fields.put(tag, value);
+    }
+
+    byte[] get(int tag)
+    {
+        return fields.get(tag);
+    }
+
+    /**
+     * @return the number of bytes write() will write
+     */
+    int getLength()
+    {
+        return 4 + getFieldsLength();
+    }
+
+    private int getFieldsLength()
+    {
+        int length = 0;
+        Iterator<byte[]> it = fields.values().iterator();
+        while (it.hasNext())
+        {
+            length += 1 + 2 + it.next().length;
+        }
+        return length;
+    }
+
+    void write(DataOutput out) throws IOException
+    {
+        out.writeInt(getFieldsLength());
+        Iterator<Map.Entry<Integer, byte[]>> it = fields.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Integer, byte[]> field = it.next();
+            out.writeByte(field.getKey().intValue());
+            out.writeShort(field.getValue().length);
+            out.write(field.getValue());
+        }
+    }
+
+    /**
+     * @param maxLength the most the header can be, i.e. the file length
+     */
+    static DatabaseHeader read(DataInput in, long maxLength) throws IOException, ProblemReadingDatabaseFile
+    {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength)
+        {
+            throw new ProblemReadingDatabaseFile("The database header is corrupt");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        DatabaseHeader header = new DatabaseHeader();
+        DataInputStream fieldStream = new DataInputStream(new ByteArrayInputStream(bytes));
+        try
+        {
+            while (fieldStream.available() > 0)
+            {
+                int tag = fieldStream.readUnsignedByte();
+                byte[] value = new byte[fieldStream.readUnsignedShort()];
+                fieldStream.readFully(value);
+                header.put(tag, value);
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new ProblemReadingDatabaseFile("The database header is corrupt");
+        }
+        return header;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses with java.util.zip.Deflater. The data is a zlib stream, the
+ * same as DeflaterOutputStream writes.
+ */
+class DeflateCodec extends Codec
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    DeflateCodec(int level)
+    {
+        super(DEFLATE, level);
+    }
+
+    byte[] compress(byte[] data)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Deflater deflater = new Deflater(getLevel());
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    byte[] decompress(byte[] data, int length) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2 + 64);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data, 0, length);
+            while (!inflater.finished())
+            {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("The compressed data is incomplete");
+                }
+                out.write(buffer, 0, inflated);
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("The compressed data is corrupt: " + e.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.IOException;
+
+/**
+ * A small LZ77 compressor along the lines of LZ4. Matches are found through
+ * a hash table of the last position each four byte sequence was seen at so
+ * compression is a single pass over the data.
+ * <p>
+ * The compressed data is the length of the uncompressed data followed by
+ * sequences of a token, literals, a match offset and a match length. The
+ * top four bits of the token are the number of literals and the bottom four
+ * the match length less MIN_MATCH, either being followed by extra length
+ * bytes when it's 15. The last sequence is just literals.
+ */
+class LZCodec extends Codec
+{
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 14;
+
+    LZCodec()
+    {
+        super(LZ, 0);
+    }
+
+    byte[] compress(byte[] data)
+    {
+        // The worst case is all literals
+        byte[] out = new byte[4 + data.length + data.length / 255 + 16];
+        int op = writeInt(out, 0, data.length);
+        int[] table = new int[1 << HASH_BITS];
+        int anchor = 0;
+        int ip = 0;
+        int limit = data.length - MIN_MATCH;
+        while (ip <= limit)
+        {
+            int sequence = readInt(data, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            // Positions are stored plus one so 0 means nothing seen yet
+            int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(data, ref) != sequence)
+            {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < data.length && data[ref + matchLength] == data[ip + matchLength])
+            {
+                matchLength++;
+            }
+            op = writeLiterals(out, op, data, anchor, ip - anchor, matchLength - MIN_MATCH);
+            out[op++] = (byte) (ip - ref);
+            out[op++] = (byte) ((ip - ref) >>> 8);
+            if (matchLength - MIN_MATCH >= 15)
+            {
+                op = writeLength(out, op, matchLength - MIN_MATCH - 15);
+            }
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeLiterals(out, op, data, anchor, data.length - anchor, 0);
+
+        byte[] result = new byte[op];
+        System.arraycopy(out, 0, result, 0, op);
+        return result;
+    }
+
+    byte[] decompress(byte[] data, int end) throws IOException
+    {
+        checkInput(end >= 4);
+        int length = readInt(data, 0);
+        // Nothing real compresses by more than 255 to 1
+        if (length < 0 || length > (long) end * 255)
+        {
+            throw new IOException("The compressed data is corrupt");
+        }
+        byte[] out = new byte[length];
+        int ip = 4;
+        int op = 0;
+        while (true)
+        {
+            checkInput(ip < end);
+            int token = data[ip++] & 0xff;
+            int literalLength = token >>> 4;
+            if (literalLength == 15)
+            {
+                int b;
+                do
+                {
+                    checkInput(ip < end);
+                    b = data[ip++] & 0xff;
+                    literalLength += b;
+                }
+                while (b == 255);
+            }
+            checkInput(literalLength <= end - ip);
+            if (literalLength > length - op)
+            {
+                throw new IOException("The compressed data is corrupt");
+            }
+            System.arraycopy(data, ip, out, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (op == length)
+            {
+                break;
+            }
+
+            checkInput(ip + 2 <= end);
+            int offset = (data[ip++] & 0xff) | (data[ip++] & 0xff) << 8;
+            int matchLength = token & 0x0f;
+            if (matchLength == 15)
+            {
+                int b;
+                do
+                {
+                    checkInput(ip < end);
+                    b = data[ip++] & 0xff;
+                    matchLength += b;
+                }
+                while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < 0 || matchLength > length - op)
+            {
+                throw new IOException("The compressed data is corrupt");
+            }
+            // The match can overlap what it's copying so it's done a byte
+            // at a time
+            for (int i = 0; i < matchLength; i++)
+            {
+                out[op++] = out[ref++];
+            }
+        }
+        return out;
+    }
+
+    private static void checkInput(boolean enoughInput) throws IOException
+    {
+        if (!enoughInput)
+        {
+            throw new IOException("The compressed data is incomplete");
+        }
+    }
+
+    private static int writeLiterals(byte[] out, int op, byte[] data, int start, int length, int matchLength)
+    {
+        out[op++] = (byte) ((Math.min(length, 15) << 4) | Math.min(matchLength, 15));
+        if (length >= 15)
+        {
+            op = writeLength(out, op, length - 15);
+        }
+        System.arraycopy(data, start, out, op, length);
+        return op + length;
+    }
+
+    private static int writeLength(byte[] out, int op, int length)
+    {
+        while (length >= 255)
+        {
+            out[op++] = (byte) 255;
+            length -= 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] data, int pos)
+    {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+    }
+
+    private static int writeInt(byte[] out, int pos, int value)
+    {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+}
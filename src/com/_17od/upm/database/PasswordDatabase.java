@@ -21,18 +21,38 @@
 package com._17od.upm.database;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import com._17od.upm.crypto.CryptoException;
 
 
 /**
  * This class represents the main interface to a password database.
  * All interaction with the database file is done using this class.
+ *
+ * When the database was loaded from a file with a record index the accounts
+ * are only decrypted the first time they're asked for. Until then their
+ * entry in the accounts map is null.
+ *
+ * The names of accounts added or deleted since the last save are remembered
+ * so that only those have to be written to the journal. All the methods are
+ * synchronized so the database can be saved on a background thread while
+ * it's being edited.
  */
 public class PasswordDatabase
 {
     private File databaseFile;
     private HashMap<String, AccountInformation> accounts;
+    private AccountLoader accountLoader;
+    private LinkedHashSet<String> changedAccounts = new LinkedHashSet<String>();
 
     public PasswordDatabase(HashMap<String, AccountInformation> accounts, File databaseFile)
     {
@@ -46,33 +66,272 @@ public class PasswordDatabase
         this.databaseFile = dbFile;
     }
 
-    public void addAccount(AccountInformation ai)
+    PasswordDatabase(Collection<String> accountNames, AccountLoader accountLoader, File databaseFile)
+    {
+        this.accounts = new HashMap<String, AccountInformation>();
+        Iterator<String> it = accountNames.iterator();
+        while (it.hasNext())
+        {
+            accounts.put(it.next(), null);
+        }
+        this.accountLoader = accountLoader;
+        this.databaseFile = databaseFile;
+    }
+
+    public synchronized void addAccount(AccountInformation ai)
     {
         accounts.put(ai.getAccountName(), ai);
+        changedAccounts.add(ai.getAccountName());
     }
 
-    public void deleteAccount(String accountName)
+    public synchronized void deleteAccount(String accountName)
     {
         accounts.remove(accountName);
+        changedAccounts.add(accountName);
+    }
+
+    public synchronized AccountInformation getAccount(String name) throws IOException, CryptoException
+    {
+        AccountInformation ai = (AccountInformation) accounts.get(name);
+        if (ai == null && accounts.containsKey(name))
+        {
+            loadAccounts(Collections.singleton(name));
+            ai = (AccountInformation) accounts.get(name);
+        }
+        return ai;
     }
 
-    public AccountInformation getAccount(String name)
+    public synchronized ArrayList<AccountInformation> getAccounts() throws IOException, CryptoException
     {
-        return (AccountInformation) accounts.get(name);
+        return new ArrayList<AccountInformation>(getAccountsHash().values());
     }
 
-    public ArrayList<AccountInformation> getAccounts()
+    public synchronized ArrayList<String> getAccountNames()
     {
-        return new ArrayList<AccountInformation>(accounts.values());
+        return new ArrayList<String>(accounts.keySet());
     }
 
-    public HashMap<String, AccountInformation> getAccountsHash()
+    public synchronized HashMap<String, AccountInformation> getAccountsHash() throws IOException, CryptoException
     {
+        if (accountLoader != null)
+        {
+            ArrayList<String> notLoaded = new ArrayList<String>();
+            Iterator<Map.Entry<String, AccountInformation>> it = accounts.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String, AccountInformation> entry = it.next();
+                if (entry.getValue() == null)
+                {
+                    notLoaded.add(entry.getKey());
+                }
+            }
+            if (!notLoaded.isEmpty())
+            {
+                loadAccounts(notLoaded);
+            }
+            // Everything is in memory now so the file isn't needed anymore
+            accountLoader = null;
+        }
         return accounts;
     }
 
+    /**
+     * Read accounts for a caller that only needs to look at them. Accounts
+     * that haven't been read yet are read from the file without holding the
+     * database's lock, so the database can carry on being used meanwhile,
+     * and aren't kept.
+     * @return the accounts asked for along with any others that were read
+     * at the same time
+     */
+    public Map<String, AccountInformation> peekAccounts(Collection<String> names) throws IOException, CryptoException
+    {
+        HashMap<String, AccountInformation> peeked = new HashMap<String, AccountInformation>();
+        while (true)
+        {
+            ArrayList<String> notLoaded = new ArrayList<String>();
+            AccountLoader loader;
+            synchronized (this)
+            {
+                peeked.clear();
+                Iterator<String> it = names.iterator();
+                while (it.hasNext())
+                {
+                    String name = it.next();
+                    AccountInformation ai = (AccountInformation) accounts.get(name);
+                    if (ai != null)
+                    {
+                        peeked.put(name, ai);
+                    }
+                    else if (accounts.containsKey(name))
+                    {
+                        notLoaded.add(name);
+                    }
+                }
+                loader = accountLoader;
+            }
+            if (notLoaded.isEmpty() || loader == null)
+            {
+                return peeked;
+            }
+
+            // If the file is replaced while it's being read the records
+            // move, which can make the read fail as well as give the wrong
+            // accounts
+            Map<String, AccountInformation> loaded;
+            try
+            {
+                loaded = loader.load(notLoaded);
+            }
+            catch (IOException e)
+            {
+                if (isAccountLoader(loader))
+                {
+                    throw e;
+                }
+                continue;
+            }
+            catch (CryptoException e)
+            {
+                if (isAccountLoader(loader))
+                {
+                    throw e;
+                }
+                continue;
+            }
+            synchronized (this)
+            {
+                if (loader != accountLoader)
+                {
+                    continue;
+                }
+                Iterator<Map.Entry<String, AccountInformation>> it = loaded.entrySet().iterator();
+                while (it.hasNext())
+                {
+                    Map.Entry<String, AccountInformation> entry = it.next();
+                    if (accounts.containsKey(entry.getKey()))
+                    {
+                        AccountInformation current = (AccountInformation) accounts.get(entry.getKey());
+                        peeked.put(entry.getKey(), current != null ? current : entry.getValue());
+                    }
+                }
+                return peeked;
+            }
+        }
+    }
+
+    private synchronized boolean isAccountLoader(AccountLoader loader)
+    {
+        return loader == accountLoader;
+    }
+
     public File getDatabaseFile()
     {
         return databaseFile;
     }
+
+    /**
+     * @return true if accounts have been added, changed or deleted since
+     * the last save, or a save of them failed
+     */
+    synchronized boolean hasChanges()
+    {
+        return !changedAccounts.isEmpty();
+    }
+
+    /**
+     * Hand over the accounts added, changed or deleted since the last call.
+     * @return a copy of each changed account, or null for the ones that
+     * have been deleted
+     */
+    synchronized LinkedHashMap<String, AccountInformation> takeChanges()
+    {
+        LinkedHashMap<String, AccountInformation> changes = new LinkedHashMap<String, AccountInformation>();
+        Iterator<String> it = changedAccounts.iterator();
+        while (it.hasNext())
+        {
+            String accountName = it.next();
+            changes.put(accountName, copy((AccountInformation) accounts.get(accountName)));
+        }
+        changedAccounts.clear();
+        return changes;
+    }
+
+    /**
+     * Put back changes taken with takeChanges() that couldn't be saved
+     */
+    synchronized void restoreChanges(Collection<String> accountNames)
+    {
+        changedAccounts.addAll(accountNames);
+    }
+
+    /**
+     * Take a copy of the database that can be written out on another thread
+     * while this one carries on being edited. Accounts that haven't been
+     * read yet are read from the same file as this database.
+     */
+    synchronized PasswordDatabase snapshot()
+    {
+        HashMap<String, AccountInformation> accountsCopy = new HashMap<String, AccountInformation>();
+        Iterator<Map.Entry<String, AccountInformation>> it = accounts.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, AccountInformation> entry = it.next();
+            accountsCopy.put(entry.getKey(), copy(entry.getValue()));
+        }
+        PasswordDatabase copy = new PasswordDatabase(accountsCopy, databaseFile);
+        copy.accountLoader = accountLoader;
+        return copy;
+    }
+
+    /**
+     * Read the accounts that haven't been read yet through a new loader.
+     * Used when the database file has been rewritten and the records have
+     * moved.
+     */
+    synchronized void setAccountLoader(AccountLoader accountLoader)
+    {
+        if (this.accountLoader != null)
+        {
+            this.accountLoader = accountLoader;
+        }
+    }
+
+    private static AccountInformation copy(AccountInformation ai)
+    {
+        if (ai == null)
+        {
+            return null;
+        }
+        // The setters replace the field values rather than changing them so
+        // copying the references is enough
+        return new AccountInformation(ai.getAccountName(), ai.getUserId(), ai.getPassword(), ai.getUrl(), ai.getNotes());
+    }
+
+    private void loadAccounts(Collection<String> names) throws IOException, CryptoException
+    {
+        Map<String, AccountInformation> loaded = accountLoader.load(names);
+        // Only fill in accounts that haven't been changed or deleted since
+        // the file was written
+        Iterator<Map.Entry<String, AccountInformation>> it = loaded.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, AccountInformation> entry = it.next();
+            if (accounts.containsKey(entry.getKey()) && accounts.get(entry.getKey()) == null)
+            {
+                accounts.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads accounts from the database file on demand
+     */
+    interface AccountLoader
+    {
+        /**
+         * @return the accounts asked for along with any others that were
+         * read at the same time
+         */
+        Map<String, AccountInformation> load(Collection<String> accountNames) throws IOException, CryptoException;
+    }
 }
@@ -20,32 +20,96 @@
  */
 package com._17od.upm.database;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.CryptoIOException;
 import com._17od.upm.crypto.EncryptionService;
 import com._17od.upm.crypto.InvalidPasswordException;
+import com._17od.upm.crypto.KeyDerivation;
+import com._17od.upm.crypto.ScratchBuffer;
 import com._17od.upm.util.Util;
 
 public class PasswordDatabasePersistence
 {
-    private static final byte DB_VERSION = 3;
+    private static final byte DB_VERSION = 9;
+    private static final byte JOURNAL_VERSION = 1;
+    private static final byte JOURNAL_PUT = 1;
+    private static final byte JOURNAL_DELETE = 2;
+    private static final int BUFFER_SIZE = 8192;
+    // Fold the journal into the database once it's grown past this size and
+    // past COMPACTION_RATIO of the database file
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    private static final int COMPACTION_RATIO = 4;
+    private static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+    // seconds a block worker waits for more work before it stops
+    private static final long BLOCK_WORKER_KEEP_ALIVE = 30;
+    private static final ExecutorService blockExecutor = newBlockExecutor();
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     private EncryptionService encryptionService;
+    // identifies the database file the journal belongs to, null until a
+    // version 5 or later file has been loaded or saved
+    private byte[] snapshotId;
+    // the length of the journal up to the end of its last complete entry,
+    // 0 if there's no journal for the current database file
+    private long journalLength;
+    private boolean compacting = false;
+    // true when the next save has to rewrite the whole file even if no
+    // accounts have changed, e.g. because the key or compression has
+    private boolean rewriteNeeded = false;
+    private Codec codec = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+    // true once setCompression() has been called, until then the codec of
+    // the last database loaded is used
+    private boolean codecChosen = false;
+    // A mapped file can't be replaced on Windows until the mapping has been
+    // garbage collected so files are only mapped elsewhere
+    private long mapThreshold = System.getProperty("os.name", "").startsWith("Windows") ? Long.MAX_VALUE : DEFAULT_MAP_THRESHOLD;
 
     /**
      * Used when we have a password and we want to get an instance of the class
@@ -65,69 +129,442 @@ public class PasswordDatabasePersistence
         encryptionService = new EncryptionService(password);
     }
 
-    public PasswordDatabase load(File databaseFile, char[] password) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException, CryptoException
+    /**
+     * Used when we want to create a new database with the given password
+     * and the key derived from it with kdf
+     */
+    public PasswordDatabasePersistence(char[] password, KeyDerivation kdf) throws CryptoException
     {
+        encryptionService = new EncryptionService(password, kdf);
+    }
 
-        byte[] fullDatabase;
-        fullDatabase = readFile(databaseFile);
+    public synchronized PasswordDatabase load(File databaseFile, char[] password) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException, CryptoException
+    {
+        snapshotId = null;
+        journalLength = 0;
 
         // Check the database is a minimum length
-        if (fullDatabase.length < EncryptionService.SALT_LENGTH)
+        if (databaseFile.length() < 1 + EncryptionService.SALT_LENGTH)
         {
             throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
         }
+        restoreHeader(databaseFile);
 
-        ByteArrayInputStream is = null;
-        GZIPInputStream gis = null;
-        ObjectInputStream ois = null;
-
-        // Calculate the positions of each item in the file
-        int dbVersionPos      = 0;
-        int saltPos           = dbVersionPos + 1;
-        int encryptedBytesPos = saltPos + EncryptionService.SALT_LENGTH;
+        FileInputStream is = new FileInputStream(databaseFile);
+        try
+        {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
 
-        // Get the database version
-        byte dbVersion = fullDatabase[dbVersionPos];
+            // Get the database version
+            byte dbVersion = dis.readByte();
+            if (dbVersion < 3 || dbVersion > DB_VERSION)
+            {
+                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
+            }
 
-        if(3 == dbVersion)
-        {
+            // Only the salt and the header are needed to derive the key so
+            // the rest of the file is read while that's going on
             byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-            System.arraycopy(fullDatabase, saltPos, salt, 0, EncryptionService.SALT_LENGTH);
-            int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-            byte[] encryptedBytes = new byte[encryptedBytesLength];
-            System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
-
-            //Attempt to decrypt the database information
-            encryptionService = new EncryptionService(password, salt);
-            byte[] decryptedBytes;
-            try
+            dis.readFully(salt);
+            DatabaseHeader header = null;
+            if (dbVersion >= 6)
             {
-                decryptedBytes = encryptionService.decrypt(encryptedBytes);
+                header = DatabaseHeader.read(dis, databaseFile.length());
             }
-            catch(CryptoException e)
+            FutureTask<EncryptionService> keyDerivation = startKeyDerivation(password, salt, readKeyDerivation(header));
+            long readStart = System.nanoTime();
+
+            if (dbVersion >= 5)
             {
-                throw new InvalidPasswordException();
+                byte[] encryptedIndex = null;
+                ProblemReadingDatabaseFile indexProblem = null;
+                try
+                {
+                    encryptedIndex = readEncryptedIndex(dis, databaseFile);
+                }
+                catch (ProblemReadingDatabaseFile e)
+                {
+                    // A wrong password is reported ahead of a damaged file
+                    indexProblem = e;
+                }
+                log.debug("Read the database header and index in " + (System.nanoTime() - readStart) / 1000000 + "ms");
+                encryptionService = getResult(keyDerivation);
+
+                boolean keyChecked = false;
+                byte[] keyCheckValue = header == null ? null : header.get(DatabaseHeader.KEY_CHECK);
+                if (keyCheckValue != null)
+                {
+                    // No need to decrypt anything to find out the
+                    // password is wrong
+                    if (!Arrays.equals(keyCheckValue, encryptionService.getKeyCheckValue()))
+                    {
+                        throw new InvalidPasswordException();
+                    }
+                    keyChecked = true;
+                }
+                byte[] wrappedKey = header == null ? null : header.get(DatabaseHeader.WRAPPED_KEY);
+                if (wrappedKey != null)
+                {
+                    encryptionService.unwrapKey(wrappedKey);
+                }
+                if (indexProblem != null)
+                {
+                    throw indexProblem;
+                }
+
+                Codec blockCodec = null;
+                if (dbVersion >= 7)
+                {
+                    blockCodec = readCodec(header);
+                    if (!codecChosen)
+                    {
+                        // Keep using what the file was written with
+                        codec = blockCodec;
+                    }
+                }
+                return readRecordIndex(encryptedIndex, blockCodec, databaseFile, keyChecked);
+            }
+
+            // Older databases are decrypted as they're read so only a
+            // mapped file, which isn't on the heap, is read ahead of the key
+            // being ready. A mapping can't be 2GB or more so bigger files
+            // are streamed too.
+            long encryptedLength = databaseFile.length() - 1 - EncryptionService.SALT_LENGTH;
+            InputStream encryptedStream;
+            if (databaseFile.length() >= mapThreshold && encryptedLength <= Integer.MAX_VALUE)
+            {
+                ByteBuffer encryptedAccounts = is.getChannel().map(FileChannel.MapMode.READ_ONLY, 1 + EncryptionService.SALT_LENGTH, encryptedLength).load();
+                log.debug("Mapped the database in " + (System.nanoTime() - readStart) / 1000000 + "ms");
+                encryptionService = getResult(keyDerivation);
+                encryptedStream = encryptionService.decrypt(encryptedAccounts);
+            }
+            else
+            {
+                encryptionService = getResult(keyDerivation);
+                encryptedStream = encryptionService.decrypt(dis);
             }
 
-            // If we've got here then the database was successfully decrypted
-            is = new ByteArrayInputStream(decryptedBytes);
+            HashMap<String, AccountInformation> accounts = new HashMap<String, AccountInformation>();
             try
             {
-                gis = new GZIPInputStream(is);
+                InputStream decryptedStream = new GZIPInputStream(encryptedStream, BUFFER_SIZE);
+                if(3 == dbVersion)
+                {
+                    readSerializedAccounts(decryptedStream, accounts);
+                }
+                else
+                {
+                    readAccountRecords(decryptedStream, accounts);
+                }
+            }
+            catch(CryptoIOException e)
+            {
+                // the padding at the end of the data was wrong
+                throw new InvalidPasswordException();
             }
             catch(ZipException e)
             {
-                throw new ProblemReadingDatabaseFile("Database compression is corrupted");
+                // The data is decompressed while it's being decrypted so a
+                // wrong password shows up as a broken GZIP stream long
+                // before the padding at the end can be checked
+                throw new InvalidPasswordException();
+            }
+            return new PasswordDatabase(accounts, databaseFile);
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Run the key derivation for password and salt on its own thread
+     */
+    private FutureTask<EncryptionService> startKeyDerivation(final char[] password, final byte[] salt, final KeyDerivation kdf)
+    {
+        FutureTask<EncryptionService> keyDerivation = new FutureTask<EncryptionService>(new Callable<EncryptionService>()
+        {
+            public EncryptionService call()
+            {
+                long start = System.nanoTime();
+                EncryptionService encryptionService = new EncryptionService(password, salt, kdf);
+                log.debug("Derived the key with " + kdf + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+                return encryptionService;
+            }
+        });
+        Thread keyDerivationThread = new Thread(keyDerivation, "UPM key derivation");
+        keyDerivationThread.setDaemon(true);
+        keyDerivationThread.start();
+        return keyDerivation;
+    }
+
+    /**
+     * Wait for a task run on another thread and rethrow anything it threw
+     */
+    private static <T> T getResult(Future<T> task) throws IOException, CryptoException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while waiting for " + task);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof CryptoException)
+            {
+                throw (CryptoException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * A pool with a thread per processor for compressing, encrypting and
+     * decrypting blocks. It's shared so that reading accounts a few at a
+     * time doesn't start new threads for every read. Threads that have been
+     * idle for a while go away.
+     */
+    private static ExecutorService newBlockExecutor()
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, BLOCK_WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "UPM block worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Stop the block tasks that are left when a read or write gives up
+     */
+    private static void cancelAll(Collection<? extends Future<?>> tasks)
+    {
+        Iterator<? extends Future<?>> it = tasks.iterator();
+        while (it.hasNext())
+        {
+            it.next().cancel(true);
+        }
+    }
+
+    private KeyDerivation readKeyDerivation(DatabaseHeader header) throws ProblemReadingDatabaseFile
+    {
+        byte[] kdfField = header == null ? null : header.get(DatabaseHeader.KDF);
+        if (kdfField == null)
+        {
+            // Every database was keyed the same way before the KDF was recorded
+            return KeyDerivation.LEGACY;
+        }
+        KeyDerivation kdf = KeyDerivation.fromBytes(kdfField);
+        if (kdf == null)
+        {
+            throw new ProblemReadingDatabaseFile("Don't know how to derive the key for this database");
+        }
+        return kdf;
+    }
+
+    private Codec readCodec(DatabaseHeader header) throws ProblemReadingDatabaseFile
+    {
+        byte[] codecField = header.get(DatabaseHeader.CODEC);
+        if (codecField == null)
+        {
+            // The blocks were always deflated before the codec was recorded
+            return new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+        }
+        Codec blockCodec = null;
+        if (codecField.length == 2)
+        {
+            blockCodec = Codec.getInstance(codecField[0], codecField[1]);
+        }
+        if (blockCodec == null)
+        {
+            throw new ProblemReadingDatabaseFile("Don't know how to handle the compression used by this database");
+        }
+        return blockCodec;
+    }
+
+    private byte[] readEncryptedIndex(DataInputStream dis, File databaseFile) throws IOException, ProblemReadingDatabaseFile
+    {
+        int indexLength = dis.readInt();
+        if (indexLength < 0 || indexLength > databaseFile.length())
+        {
+            throw new ProblemReadingDatabaseFile("The account index is corrupt");
+        }
+        byte[] encryptedIndex = new byte[indexLength];
+        dis.readFully(encryptedIndex);
+        return encryptedIndex;
+    }
+
+    /**
+     * Version 5 and later databases start with an encrypted index of account
+     * names and where each account's record, or since version 7 the block
+     * holding it, is in the file. Only the index is decrypted here, the
+     * accounts are read as they're needed.
+     * @param blockCodec how the blocks are compressed, null if the file
+     * predates blocks and each record is encrypted on its own
+     * @param keyChecked true if the password is known to be right
+     */
+    private PasswordDatabase readRecordIndex(byte[] encryptedIndex, Codec blockCodec, File databaseFile, boolean keyChecked) throws IOException, ProblemReadingDatabaseFile, InvalidPasswordException
+    {
+        byte[] index;
+        try
+        {
+            index = encryptionService.decryptWithIV(encryptedIndex);
+        }
+        catch(CryptoException e)
+        {
+            if (keyChecked)
+            {
+                throw new ProblemReadingDatabaseFile("The account index is corrupt");
+            }
+            throw new InvalidPasswordException();
+        }
+
+        DataInputStream indexStream = new DataInputStream(new ByteArrayInputStream(index));
+        RecordIndex recordIndex;
+        if (blockCodec != null)
+        {
+            recordIndex = new RecordIndex(databaseFile, blockCodec);
+            int numBlocks = indexStream.readInt();
+            for (int i = 0; i < numBlocks; i++)
+            {
+                long offset = indexStream.readLong();
+                int length = indexStream.readInt();
+                recordIndex.addExtent(offset, length);
+            }
+            int numAccounts = indexStream.readInt();
+            for (int i = 0; i < numAccounts; i++)
+            {
+                String accountName = AccountRecords.readString(indexStream);
+                int block = indexStream.readInt();
+                if (block < 0 || block >= numBlocks)
+                {
+                    throw new ProblemReadingDatabaseFile("The account index is corrupt");
+                }
+                recordIndex.put(accountName, block);
             }
-            ois = new ObjectInputStream(gis);
         }
         else
         {
-            throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
+            recordIndex = new RecordIndex(databaseFile, null);
+            int numAccounts = indexStream.readInt();
+            for (int i = 0; i < numAccounts; i++)
+            {
+                String accountName = AccountRecords.readString(indexStream);
+                long offset = indexStream.readLong();
+                int length = indexStream.readInt();
+                recordIndex.put(accountName, recordIndex.addExtent(offset, length));
+            }
+        }
+        // The IV of the index is random for every save so it doubles as an
+        // identifier for this version of the file
+        snapshotId = new byte[EncryptionService.IV_LENGTH];
+        System.arraycopy(encryptedIndex, 0, snapshotId, 0, snapshotId.length);
+
+        PasswordDatabase database = new PasswordDatabase(recordIndex.getAccountNames(), recordIndex, databaseFile);
+        replayJournal(database);
+        return database;
+    }
+
+    /**
+     * Apply the changes recorded in the journal since the database file was
+     * last written. A journal left over from an older version of the file is
+     * ignored, as is anything after a partly written entry at the end.
+     */
+    private void replayJournal(PasswordDatabase database) throws IOException
+    {
+        File journalFile = getJournalFile(database.getDatabaseFile());
+        if (!journalFile.exists())
+        {
+            return;
         }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), BUFFER_SIZE));
+        try
+        {
+            byte[] journalSnapshotId = new byte[EncryptionService.IV_LENGTH];
+            if (in.read() != JOURNAL_VERSION)
+            {
+                return;
+            }
+            in.readFully(journalSnapshotId);
+            if (!Arrays.equals(journalSnapshotId, snapshotId))
+            {
+                log.info("Ignoring journal " + journalFile + " as it doesn't belong to this database file");
+                return;
+            }
+            long validLength = 1 + EncryptionService.IV_LENGTH;
+            int numEntries = 0;
+            while (true)
+            {
+                byte[] entry;
+                int length;
+                try
+                {
+                    length = in.readInt();
+                    if (length < 0 || length > journalFile.length())
+                    {
+                        break;
+                    }
+                    byte[] encryptedEntry = new byte[length];
+                    in.readFully(encryptedEntry);
+                    entry = encryptionService.decryptWithIV(encryptedEntry);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                catch (CryptoException e)
+                {
+                    break;
+                }
+                DataInputStream entryStream = new DataInputStream(new ByteArrayInputStream(entry));
+                if (entryStream.readByte() == JOURNAL_PUT)
+                {
+                    database.addAccount(AccountRecords.read(entryStream));
+                }
+                else
+                {
+                    database.deleteAccount(AccountRecords.readString(entryStream));
+                }
+                validLength += 4 + length;
+                numEntries++;
+            }
+            // Anything after this is overwritten by the next save
+            journalLength = validLength;
+            log.debug("Replayed " + numEntries + " journal entries");
+        }
+        finally
+        {
+            in.close();
+        }
+        // The changes are already on disk
+        database.takeChanges();
+    }
 
-        // Read the remainder of the database in now
-        HashMap<String, AccountInformation> accounts = new HashMap<String, AccountInformation>();
+    /**
+     * Version 3 databases hold a sequence of serialized AccountInformation
+     * objects
+     */
+    private void readSerializedAccounts(InputStream decryptedStream, HashMap<String, AccountInformation> accounts) throws IOException
+    {
+        ObjectInputStream ois = new ObjectInputStream(decryptedStream);
         try
         {
             while (true)
@@ -144,36 +581,690 @@ public class PasswordDatabasePersistence
         {
             Util.errorHandler(e);
         }
-        is.close();
-        PasswordDatabase passwordDatabase = new PasswordDatabase(accounts, databaseFile);
-        return passwordDatabase;
     }
 
-    public void save(PasswordDatabase database) throws IOException, CryptoException
+    /**
+     * Version 4 databases hold a record count followed by that many records
+     * in the format described by AccountRecords
+     */
+    private void readAccountRecords(InputStream decryptedStream, HashMap<String, AccountInformation> accounts) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        GZIPOutputStream gout = new GZIPOutputStream(os);
-        ObjectOutputStream out = new ObjectOutputStream(gout);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(decryptedStream, BUFFER_SIZE));
+        int numAccounts = dis.readInt();
+        for (int i = 0; i < numAccounts; i++)
+        {
+            AccountInformation ai = AccountRecords.read(dis);
+            accounts.put(ai.getAccountName(), ai);
+        }
+        // Reading to the end makes GZIP check its CRC and the cipher its padding
+        if (dis.read() != -1)
+        {
+            throw new IOException("Unexpected data after the last account");
+        }
+    }
+
+    /**
+     * Save the changes made to the database. Once the database has been
+     * written in the current format the accounts changed since the last save
+     * are appended to a journal next to the database file rather than the
+     * whole file being rewritten. When the journal gets too big it's folded
+     * back into the database file on a background thread.
+     */
+    public synchronized void save(PasswordDatabase database) throws IOException, CryptoException
+    {
+        // Leave the file alone, and in whatever version it's in, unless
+        // there's something to write
+        if (!needsSaving(database))
+        {
+            return;
+        }
+        File databaseFile = database.getDatabaseFile();
+        if (snapshotId == null || rewriteNeeded || !databaseFile.exists())
+        {
+            saveSnapshot(database);
+            return;
+        }
+
+        LinkedHashMap<String, AccountInformation> changes = database.takeChanges();
+        if (changes.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            appendToJournal(databaseFile, changes);
+        }
+        catch (IOException e)
+        {
+            database.restoreChanges(changes.keySet());
+            throw e;
+        }
+        catch (CryptoException e)
+        {
+            database.restoreChanges(changes.keySet());
+            throw e;
+        }
+
+        if (!compacting && journalLength > MIN_COMPACTION_SIZE
+                && journalLength > databaseFile.length() / COMPACTION_RATIO)
+        {
+            startCompaction(database);
+        }
+    }
 
-        // serialize the accounts
-        Iterator<AccountInformation> it = database.getAccountsHash().values().iterator();
+    /**
+     * @return true if save() has anything to write for database: accounts
+     * changed since the last save, including ones a failed save couldn't
+     * write, a file that has to be rewritten, or no file at all yet
+     */
+    public synchronized boolean needsSaving(PasswordDatabase database)
+    {
+        return rewriteNeeded || database.hasChanges() || !database.getDatabaseFile().exists();
+    }
+
+    /**
+     * Rewrite the whole database file and throw away the journal. The
+     * database is copied first so it can carry on being edited while the
+     * copy is written out.
+     */
+    private void saveSnapshot(PasswordDatabase database) throws IOException, CryptoException
+    {
+        // Anything changed after this point is in both the copy and the
+        // list of changes, which does no harm
+        LinkedHashMap<String, AccountInformation> changes = database.takeChanges();
+        PasswordDatabase snapshot = database.snapshot();
+        try
+        {
+            File databaseFile = database.getDatabaseFile();
+            File tempFile = getTempFile(databaseFile);
+            RecordIndex recordIndex = writeSnapshot(snapshot.getAccountsHash().values(), tempFile, databaseFile);
+            backup(databaseFile);
+            // A header kept by a password change that didn't finish belongs
+            // to the file that's being replaced
+            deleteHeaderUndo(databaseFile);
+            // Nobody may read a record between the file being replaced and
+            // the database being told where the records are now
+            synchronized (database)
+            {
+                replaceFile(tempFile, databaseFile);
+                database.setAccountLoader(recordIndex);
+            }
+            getJournalFile(databaseFile).delete();
+            snapshotId = recordIndex.snapshotId;
+            journalLength = 0;
+            rewriteNeeded = false;
+        }
+        catch (IOException e)
+        {
+            database.restoreChanges(changes.keySet());
+            throw e;
+        }
+        catch (CryptoException e)
+        {
+            database.restoreChanges(changes.keySet());
+            throw e;
+        }
+    }
+
+    private void appendToJournal(File databaseFile, LinkedHashMap<String, AccountInformation> changes) throws IOException, CryptoException
+    {
+        File journalFile = getJournalFile(databaseFile);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+
+        // Start a new journal if there isn't one for the current database file
+        if (journalLength == 0)
+        {
+            out.write(JOURNAL_VERSION);
+            out.write(snapshotId);
+        }
+
+        Iterator<Map.Entry<String, AccountInformation>> it = changes.entrySet().iterator();
         while (it.hasNext())
         {
-            AccountInformation ai = (AccountInformation) it.next();
-            out.writeObject(ai);
+            Map.Entry<String, AccountInformation> change = it.next();
+            AccountInformation ai = change.getValue();
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            DataOutputStream entryStream = new DataOutputStream(entry);
+            if (ai != null)
+            {
+                entryStream.write(JOURNAL_PUT);
+                AccountRecords.write(entryStream, ai);
+            }
+            else
+            {
+                entryStream.write(JOURNAL_DELETE);
+                AccountRecords.writeString(entryStream, change.getKey());
+            }
+            entryStream.close();
+            byte[] encryptedEntry = encryptWithRandomIV(entry.toByteArray());
+            out.writeInt(encryptedEntry.length);
+            out.write(encryptedEntry);
         }
         out.close();
-        byte[] dataToEncrypt = os.toByteArray();
 
-        //Now encrypt the database data
-        byte[] encryptedData = encryptionService.encrypt(dataToEncrypt);
+        byte[] bytes = entries.toByteArray();
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try
+        {
+            // Throw away anything left after the last complete entry by a
+            // save that didn't finish
+            FileChannel channel = file.getChannel();
+            channel.truncate(journalLength);
+            channel.position(journalLength);
+            OutputStream os = newOutputStream(channel);
+            os.write(bytes);
+            os.flush();
+            channel.force(false);
+        }
+        finally
+        {
+            file.close();
+        }
+        journalLength += bytes.length;
+    }
+
+    /**
+     * Fold the journal into a new database file on a background thread.
+     * Saves made while the compaction is running wait for it to finish.
+     */
+    private void startCompaction(final PasswordDatabase database)
+    {
+        compacting = true;
+        Thread compactionThread = new Thread("UPM journal compaction")
+        {
+            public void run()
+            {
+                synchronized (PasswordDatabasePersistence.this)
+                {
+                    try
+                    {
+                        saveSnapshot(database);
+                        log.debug("Compacted the journal into " + database.getDatabaseFile());
+                    }
+                    catch (Exception e)
+                    {
+                        // The journal is still intact so nothing is lost
+                        log.error("Could not compact the journal", e);
+                    }
+                    finally
+                    {
+                        compacting = false;
+                        PasswordDatabasePersistence.this.notifyAll();
+                    }
+                }
+            }
+        };
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
 
-        //Write the salt and the encrypted data out to the database file
-        FileOutputStream fos = new FileOutputStream(database.getDatabaseFile());
-        fos.write(DB_VERSION);
-        fos.write(encryptionService.getSalt());
-        fos.write(encryptedData);
-        fos.close();
+    /**
+     * Wait for a compaction started by save() to finish. The database file
+     * shouldn't be read by anything else until it has.
+     */
+    public synchronized void waitForCompaction() throws InterruptedException
+    {
+        while (compacting)
+        {
+            wait();
+        }
+    }
+
+    /**
+     * Write the accounts out in the current (version 9) format:
+     * <pre>
+     * version | salt | header | index length | encrypted index | encrypted blocks...
+     * </pre>
+     * The header is described by DatabaseHeader and holds the key derivation,
+     * the key check value, the codec the blocks are compressed with and,
+     * since version 9, the wrapped data key. The accounts are grouped
+     * into blocks by RecordBlocks. The index holds
+     * the file offset and length of each block followed by the name of each
+     * account and the number of the block it's in. The index and every block
+     * are each encrypted on their own with a random IV so that an account can
+     * be read without decrypting the rest of the file, and the blocks can be
+     * compressed and encrypted in parallel.
+     * @return the index of the records once the file is in place as databaseFile
+     */
+    private RecordIndex writeSnapshot(Collection<AccountInformation> accounts, File file, File databaseFile) throws IOException, CryptoException
+    {
+        // Grouping the accounts before any block is written means the size
+        // of the index in front of the blocks is known
+        final ArrayList<List<AccountInformation>> blocks = RecordBlocks.group(accounts);
+        int indexLength = 4 + blocks.size() * (8 + 4) + 4;
+        for (int i = 0; i < blocks.size(); i++)
+        {
+            List<AccountInformation> block = blocks.get(i);
+            for (int j = 0; j < block.size(); j++)
+            {
+                indexLength += AccountRecords.getStringLength(((AccountInformation) block.get(j)).getAccountName()) + 4;
+            }
+        }
+        int encryptedIndexLength = EncryptionService.getEncryptedLengthWithIV(indexLength);
+
+        final Codec blockCodec = codec;
+        DatabaseHeader header = new DatabaseHeader();
+        header.put(DatabaseHeader.KDF, encryptionService.getKeyDerivation().toBytes());
+        header.put(DatabaseHeader.KEY_CHECK, encryptionService.getKeyCheckValue());
+        header.put(DatabaseHeader.CODEC, new byte[] {(byte) blockCodec.getId(), (byte) blockCodec.getLevel()});
+        if (encryptionService.getWrappedKey() != null)
+        {
+            header.put(DatabaseHeader.WRAPPED_KEY, encryptionService.getWrappedKey());
+        }
+        long indexOffset = 1 + EncryptionService.SALT_LENGTH + header.getLength() + 4;
+
+        RecordIndex recordIndex = new RecordIndex(databaseFile, blockCodec);
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            FileChannel channel = fos.getChannel();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(newOutputStream(channel), BUFFER_SIZE));
+
+            //Write the version and the salt in the clear
+            out.write(DB_VERSION);
+            out.write(encryptionService.getSalt());
+            header.write(out);
+            out.writeInt(encryptedIndexLength);
+            // Leave room for the index, it's written once the blocks are
+            out.write(new byte[encryptedIndexLength]);
+
+            // Blocks are compressed and encrypted on all processors but only
+            // a few more than there are threads are held in memory at once
+            long offset = indexOffset + encryptedIndexLength;
+            int window = Runtime.getRuntime().availableProcessors() * 2;
+            int nextBlock = 0;
+            for (int i = 0; i < blocks.size(); i++)
+            {
+                while (nextBlock < blocks.size() && pending.size() < window)
+                {
+                    final List<AccountInformation> block = blocks.get(nextBlock++);
+                    pending.add(blockExecutor.submit(new Callable<byte[]>()
+                    {
+                        public byte[] call() throws IOException, CryptoException
+                        {
+                            return encryptWithRandomIV(RecordBlocks.encode(block, blockCodec));
+                        }
+                    }));
+                }
+                byte[] encryptedBlock = getResult(pending.removeFirst());
+                out.write(encryptedBlock);
+                recordIndex.addExtent(offset, encryptedBlock.length);
+                offset += encryptedBlock.length;
+            }
+            out.flush();
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(indexLength);
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            index.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++)
+            {
+                index.writeLong(recordIndex.getExtentOffset(i));
+                index.writeInt(recordIndex.getExtentLength(i));
+            }
+            index.writeInt(accounts.size());
+            for (int i = 0; i < blocks.size(); i++)
+            {
+                List<AccountInformation> block = blocks.get(i);
+                for (int j = 0; j < block.size(); j++)
+                {
+                    String accountName = ((AccountInformation) block.get(j)).getAccountName();
+                    AccountRecords.writeString(index, accountName);
+                    index.writeInt(i);
+                    recordIndex.put(accountName, i);
+                }
+            }
+            index.close();
+            byte[] encryptedIndex = encryptWithRandomIV(indexBytes.toByteArray());
+            recordIndex.snapshotId = new byte[EncryptionService.IV_LENGTH];
+            System.arraycopy(encryptedIndex, 0, recordIndex.snapshotId, 0, EncryptionService.IV_LENGTH);
+            ByteBuffer indexBuffer = ByteBuffer.wrap(encryptedIndex);
+            while (indexBuffer.hasRemaining())
+            {
+                channel.write(indexBuffer, indexOffset + indexBuffer.position());
+            }
+
+            // The file has to be on the disk before it replaces the database
+            // or a crash could leave neither version intact
+            channel.force(true);
+        }
+        finally
+        {
+            cancelAll(pending);
+            fos.close();
+        }
+        return recordIndex;
+    }
+
+    /**
+     * Overridden by the tests to simulate a crash part way through a write
+     */
+    OutputStream newOutputStream(FileChannel channel)
+    {
+        return Channels.newOutputStream(channel);
+    }
+
+    /**
+     * Keep a copy of the database file and its journal as they are before
+     * they're replaced. The copy can be opened like any other database if
+     * the new version has to be rolled back.
+     */
+    private void backup(File databaseFile) throws IOException
+    {
+        if (!databaseFile.exists())
+        {
+            return;
+        }
+        File backupFile = getBackupFile(databaseFile);
+        File journalFile = getJournalFile(databaseFile);
+        deleteHeaderUndo(backupFile);
+        copyFile(databaseFile, backupFile);
+        if (journalFile.exists())
+        {
+            copyFile(journalFile, getJournalFile(backupFile));
+        }
+        else
+        {
+            getJournalFile(backupFile).delete();
+        }
+    }
+
+    private void copyFile(File source, File destination) throws IOException
+    {
+        FileInputStream in = new FileInputStream(source);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(destination);
+            try
+            {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size)
+                {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+                outChannel.force(true);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void replaceFile(File newFile, File target) throws IOException
+    {
+        // renameTo() replaces the target in one step on POSIX systems but
+        // won't replace an existing file on every platform. If it has to be
+        // deleted first there's still the backup to fall back on.
+        if (!newFile.renameTo(target))
+        {
+            target.delete();
+            if (!newFile.renameTo(target))
+            {
+                throw new IOException("Could not rename " + newFile + " to " + target);
+            }
+        }
+    }
+
+    private static File getTempFile(File databaseFile)
+    {
+        return new File(databaseFile.getPath() + ".tmp");
+    }
+
+    private static File getBackupFile(File databaseFile)
+    {
+        return new File(databaseFile.getPath() + ".bak");
+    }
+
+    private static File getJournalFile(File databaseFile)
+    {
+        return new File(databaseFile.getPath() + ".journal");
+    }
+
+    private static File getHeaderUndoFile(File databaseFile)
+    {
+        return new File(databaseFile.getPath() + ".header");
+    }
+
+    /**
+     * Switch to a new master password. The next save() will use it.
+     */
+    public void changePassword(PasswordDatabase database, char[] password) throws IOException, CryptoException
+    {
+        changePassword(database, password, KeyDerivation.DEFAULT);
+    }
+
+    /**
+     * Switch to a new master password the same way as
+     * changePassword(PasswordDatabase, char[]). A database whose key is
+     * derived the legacy way has it derived with upgrade from then on.
+     */
+    public synchronized void changePassword(PasswordDatabase database, char[] password, KeyDerivation upgrade) throws IOException, CryptoException
+    {
+        byte[] oldWrappedKey = encryptionService.getWrappedKey();
+        if (oldWrappedKey == null)
+        {
+            // Any accounts still in the file have to be decrypted with the
+            // old key before it's thrown away
+            database.getAccountsHash();
+        }
+        EncryptionService changed = encryptionService.withPassword(password, upgrade);
+
+        // When the data key stays the same only the header has to change.
+        // The old password stays in use until the file has the new one.
+        File databaseFile = database.getDatabaseFile();
+        if (oldWrappedKey != null && snapshotId != null && rewriteHeader(databaseFile, oldWrappedKey, changed))
+        {
+            encryptionService = changed;
+            // The backup has the same data key so it mustn't open with the
+            // old password either. It's only changed once the database has
+            // been so there's always one of them that opens.
+            rewriteHeader(getBackupFile(databaseFile), oldWrappedKey, changed);
+            return;
+        }
+        encryptionService = changed;
+        // The journal can't be added to with the new key
+        snapshotId = null;
+        rewriteNeeded = true;
+    }
+
+    /**
+     * Put the key check value and the data key wrapped for changed's
+     * password into the header of file. The fields are the same length as
+     * before so the header is overwritten where it is and nothing else in
+     * the file is touched. Until the new header is on the disk the old one
+     * is kept alongside for restoreHeader() to put back.
+     * @return false if file doesn't hold the data key as oldWrappedKey
+     */
+    private boolean rewriteHeader(File file, byte[] oldWrappedKey, EncryptionService changed) throws IOException
+    {
+        if (!file.exists())
+        {
+            return false;
+        }
+        restoreHeader(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            if (raf.length() < 1 + EncryptionService.SALT_LENGTH || raf.readByte() < 6)
+            {
+                return false;
+            }
+            byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+            raf.readFully(salt);
+            DatabaseHeader header;
+            try
+            {
+                header = DatabaseHeader.read(raf, raf.length());
+            }
+            catch (ProblemReadingDatabaseFile e)
+            {
+                return false;
+            }
+            if (!Arrays.equals(salt, changed.getSalt()) || !Arrays.equals(header.get(DatabaseHeader.WRAPPED_KEY), oldWrappedKey))
+            {
+                return false;
+            }
+
+            int oldLength = header.getLength();
+            header.put(DatabaseHeader.KEY_CHECK, changed.getKeyCheckValue());
+            header.put(DatabaseHeader.WRAPPED_KEY, changed.getWrappedKey());
+            if (header.getLength() != oldLength)
+            {
+                return false;
+            }
+            byte[] oldHeader = new byte[1 + EncryptionService.SALT_LENGTH + oldLength];
+            raf.seek(0);
+            raf.readFully(oldHeader);
+            writeHeaderUndo(file, oldHeader);
+
+            ByteArrayOutputStream newHeader = new ByteArrayOutputStream(oldLength);
+            header.write(new DataOutputStream(newHeader));
+            raf.seek(1 + EncryptionService.SALT_LENGTH);
+            raf.write(newHeader.toByteArray());
+            raf.getChannel().force(true);
+        }
+        finally
+        {
+            raf.close();
+        }
+        deleteHeaderUndo(file);
+        log.debug("Rewrote the header of " + file + " for the new password");
+        return true;
+    }
+
+    /**
+     * Keep the start of file up to the end of its header, followed by a
+     * checksum so restoreHeader() can tell whether it was all written
+     */
+    private void writeHeaderUndo(File file, byte[] oldHeader) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        checksum.update(oldHeader);
+        FileOutputStream fos = new FileOutputStream(getHeaderUndoFile(file));
+        try
+        {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.write(oldHeader);
+            out.writeLong(checksum.getValue());
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        finally
+        {
+            fos.close();
+        }
+    }
+
+    /**
+     * Put back the header rewriteHeader() kept if it didn't get as far as
+     * throwing it away, in case the new one was only partly written. One
+     * that wasn't completely kept was being written before the header was
+     * touched so it's just thrown away.
+     */
+    private void restoreHeader(File file) throws IOException
+    {
+        File undoFile = getHeaderUndoFile(file);
+        if (!undoFile.isFile())
+        {
+            return;
+        }
+        byte[] oldHeader = null;
+        RandomAccessFile undo = new RandomAccessFile(undoFile, "r");
+        try
+        {
+            long length = undo.length() - 8;
+            if (length >= 1 + EncryptionService.SALT_LENGTH + 4 && length <= file.length())
+            {
+                oldHeader = new byte[(int) length];
+                undo.readFully(oldHeader);
+                CRC32 checksum = new CRC32();
+                checksum.update(oldHeader);
+                if (undo.readLong() != checksum.getValue())
+                {
+                    oldHeader = null;
+                }
+            }
+        }
+        finally
+        {
+            undo.close();
+        }
+
+        if (oldHeader != null)
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                // The version, salt and header length never change with the
+                // password so anything else is left from another file
+                byte[] start = new byte[1 + EncryptionService.SALT_LENGTH + 4];
+                raf.readFully(start);
+                if (Arrays.equals(start, Arrays.copyOf(oldHeader, start.length)))
+                {
+                    raf.seek(0);
+                    raf.write(oldHeader);
+                    raf.getChannel().force(true);
+                    log.warn("Put back the header of " + file + " from before a password change that didn't finish");
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        deleteHeaderUndo(file);
+    }
+
+    private void deleteHeaderUndo(File file) throws IOException
+    {
+        File undoFile = getHeaderUndoFile(file);
+        if (undoFile.exists() && !undoFile.delete())
+        {
+            throw new IOException("Could not delete " + undoFile);
+        }
+    }
+
+    /**
+     * Choose how the database is compressed the next time the whole file is
+     * written. The file is rewritten by the next save() unless it's already
+     * compressed that way.
+     * @param codecId Codec.STORE, Codec.DEFLATE or Codec.LZ
+     * @param level the Deflater level for Codec.DEFLATE, ignored otherwise
+     */
+    public synchronized void setCompression(int codecId, int level)
+    {
+        Codec newCodec = Codec.getInstance(codecId, codecId == Codec.DEFLATE ? level : 0);
+        if (newCodec == null)
+        {
+            throw new IllegalArgumentException("Unknown compression " + codecId + " level " + level);
+        }
+        codecChosen = true;
+        if (newCodec.getId() == codec.getId() && newCodec.getLevel() == codec.getLevel())
+        {
+            return;
+        }
+        codec = newCodec;
+        snapshotId = null;
+        rewriteNeeded = true;
+    }
+
+    /**
+     * Database files at least this many bytes long are mapped into memory
+     * and decrypted from there rather than read. Long.MAX_VALUE turns
+     * mapping off.
+     */
+    public void setMapThreshold(long mapThreshold)
+    {
+        this.mapThreshold = mapThreshold;
     }
 
     public EncryptionService getEncryptionService()
@@ -181,31 +1272,231 @@ public class PasswordDatabasePersistence
         return encryptionService;
     }
 
-    private byte[] readFile(File file) throws IOException
+    /**
+     * Encrypt a block, journal entry or index with the calling thread's
+     * scratch buffer, which keeps its ciphers from one call to the next
+     */
+    private byte[] encryptWithRandomIV(byte[] plainText) throws CryptoException
+    {
+        byte[] encrypted = new byte[EncryptionService.getEncryptedLengthWithIV(plainText.length)];
+        encryptionService.encryptWithRandomIV(ByteBuffer.wrap(plainText), ByteBuffer.wrap(encrypted), readBuffers.get().scratch);
+        return encrypted;
+    }
+
+    /**
+     * The buffers a thread reads encrypted extents into. They're kept
+     * between reads and only grow, so reading a database doesn't make new
+     * buffers for every block. The scratch buffer is used for writing too.
+     */
+    private static class ReadBuffers
+    {
+        final ScratchBuffer scratch = new ScratchBuffer();
+        private byte[] encrypted = new byte[0];
+        private byte[] decrypted = new byte[0];
+
+        byte[] getEncrypted(int length)
+        {
+            if (encrypted.length < length)
+            {
+                encrypted = new byte[length];
+            }
+            return encrypted;
+        }
+
+        byte[] getDecrypted(int length)
+        {
+            if (decrypted.length < length)
+            {
+                decrypted = new byte[length];
+            }
+            return decrypted;
+        }
+    }
+
+    private static final ThreadLocal<ReadBuffers> readBuffers = new ThreadLocal<ReadBuffers>()
+    {
+        protected ReadBuffers initialValue()
+        {
+            return new ReadBuffers();
+        }
+    };
+
+    /**
+     * Where the accounts are in a version 5 or later database file. Each
+     * account is in an extent of the file holding either just its record or,
+     * since version 7, a block of records.
+     */
+    private class RecordIndex implements PasswordDatabase.AccountLoader
     {
-        InputStream is = new FileInputStream(file);
+        private File databaseFile;
+        // null if every extent is a single record rather than a block
+        private Codec blockCodec;
+        private ArrayList<long[]> extents = new ArrayList<long[]>();
+        private HashMap<String, Integer> accountExtents = new HashMap<String, Integer>();
+        private byte[] snapshotId;
+        private ByteBuffer mappedFile;
+        private boolean mappingChecked = false;
+
+        RecordIndex(File databaseFile, Codec blockCodec)
+        {
+            this.databaseFile = databaseFile;
+            this.blockCodec = blockCodec;
+        }
+
+        /**
+         * @return the number of the new extent
+         */
+        int addExtent(long offset, int length)
+        {
+            extents.add(new long[] {offset, length});
+            return extents.size() - 1;
+        }
 
-        // Create the byte array to hold the data
-        byte[] bytes = new byte[(int) file.length()];
+        long getExtentOffset(int extent)
+        {
+            return ((long[]) extents.get(extent))[0];
+        }
+
+        int getExtentLength(int extent)
+        {
+            return (int) ((long[]) extents.get(extent))[1];
+        }
+
+        void put(String accountName, int extent)
+        {
+            accountExtents.put(accountName, extent);
+        }
 
-        // Read in the bytes
-        int offset = 0;
-        int numRead = 0;
-        while (offset < bytes.length
-               && (numRead=is.read(bytes, offset, bytes.length-offset)) >= 0)
+        Collection<String> getAccountNames()
         {
-            offset += numRead;
+            return accountExtents.keySet();
         }
 
-        is.close();
+        public Map<String, AccountInformation> load(Collection<String> accountNames) throws IOException, CryptoException
+        {
+            // Each extent is only read once however many of the accounts
+            // are in it
+            TreeSet<Integer> neededExtents = new TreeSet<Integer>();
+            Iterator<String> it = accountNames.iterator();
+            while (it.hasNext())
+            {
+                Integer extent = accountExtents.get(it.next());
+                if (extent != null)
+                {
+                    neededExtents.add(extent);
+                }
+            }
+
+            HashMap<String, AccountInformation> accounts = new HashMap<String, AccountInformation>();
+            if (neededExtents.size() == 1)
+            {
+                readExtent(((Integer) neededExtents.first()).intValue(), accounts);
+                return accounts;
+            }
+
+            ArrayList<Future<HashMap<String, AccountInformation>>> results = new ArrayList<Future<HashMap<String, AccountInformation>>>();
+            try
+            {
+                Iterator<Integer> extentIt = neededExtents.iterator();
+                while (extentIt.hasNext())
+                {
+                    final int extent = extentIt.next().intValue();
+                    results.add(blockExecutor.submit(new Callable<HashMap<String, AccountInformation>>()
+                    {
+                        public HashMap<String, AccountInformation> call() throws IOException, CryptoException
+                        {
+                            HashMap<String, AccountInformation> extentAccounts = new HashMap<String, AccountInformation>();
+                            readExtent(extent, extentAccounts);
+                            return extentAccounts;
+                        }
+                    }));
+                }
+                for (int i = 0; i < results.size(); i++)
+                {
+                    accounts.putAll(getResult(results.get(i)));
+                }
+            }
+            finally
+            {
+                cancelAll(results);
+            }
+            return accounts;
+        }
 
-        // Ensure all the bytes have been read in
-        if (offset < bytes.length)
+        private void readExtent(int extent, HashMap<String, AccountInformation> accounts) throws IOException, CryptoException
         {
-            throw new IOException("Could not completely read file " + file.getName());
+            long offset = getExtentOffset(extent);
+            int length = getExtentLength(extent);
+            ReadBuffers buffers = readBuffers.get();
+            ByteBuffer encrypted;
+            ByteBuffer file = getMappedFile();
+            if (file != null)
+            {
+                encrypted = file.duplicate();
+                encrypted.limit((int) (offset + length));
+                encrypted.position((int) offset);
+            }
+            else
+            {
+                byte[] encryptedBytes = buffers.getEncrypted(length);
+                RandomAccessFile raf = new RandomAccessFile(databaseFile, "r");
+                try
+                {
+                    raf.seek(offset);
+                    raf.readFully(encryptedBytes, 0, length);
+                }
+                finally
+                {
+                    raf.close();
+                }
+                encrypted = ByteBuffer.wrap(encryptedBytes, 0, length);
+            }
+            byte[] decrypted = buffers.getDecrypted(length);
+            int decryptedLength = encryptionService.decryptWithIV(encrypted, ByteBuffer.wrap(decrypted), buffers.scratch);
+
+            if (blockCodec != null)
+            {
+                ArrayList<AccountInformation> blockAccounts = RecordBlocks.decode(decrypted, decryptedLength, blockCodec);
+                for (int i = 0; i < blockAccounts.size(); i++)
+                {
+                    AccountInformation ai = (AccountInformation) blockAccounts.get(i);
+                    accounts.put(ai.getAccountName(), ai);
+                }
+            }
+            else
+            {
+                AccountInformation ai = AccountRecords.fromBytes(decrypted, decryptedLength);
+                accounts.put(ai.getAccountName(), ai);
+            }
         }
 
-        return bytes;
+        /**
+         * Map the file the first time a record is read from it, as long as
+         * it's big enough for it to be worth it and small enough to fit in
+         * one buffer
+         * @return the mapped file or null if it isn't mapped
+         */
+        private synchronized ByteBuffer getMappedFile() throws IOException
+        {
+            if (!mappingChecked)
+            {
+                mappingChecked = true;
+                long length = databaseFile.length();
+                if (length >= mapThreshold && length <= Integer.MAX_VALUE)
+                {
+                    RandomAccessFile raf = new RandomAccessFile(databaseFile, "r");
+                    try
+                    {
+                        mappedFile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    }
+                    finally
+                    {
+                        raf.close();
+                    }
+                }
+            }
+            return mappedFile;
+        }
     }
 
 }
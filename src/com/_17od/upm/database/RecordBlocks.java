@@ -0,0 +1,114 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Groups records into the blocks used since database version 7. A block is
+ * the number of records it holds followed by the records in the format
+ * described by AccountRecords, compressed as a whole by the Codec named in
+ * the file header. Each block is
+ * encrypted on its own so blocks can be compressed, encrypted and decrypted
+ * in parallel.
+ */
+final class RecordBlocks
+{
+    // roughly how many bytes of records go into a block before it's
+    // compressed
+    static final int TARGET_BLOCK_SIZE = 64 * 1024;
+
+    private RecordBlocks()
+    {
+    }
+
+    /**
+     * Split accounts into groups of around TARGET_BLOCK_SIZE bytes
+     */
+    static ArrayList<List<AccountInformation>> group(Collection<AccountInformation> accounts)
+    {
+        ArrayList<List<AccountInformation>> blocks = new ArrayList<List<AccountInformation>>();
+        ArrayList<AccountInformation> block = null;
+        int blockSize = 0;
+        Iterator<AccountInformation> it = accounts.iterator();
+        while (it.hasNext())
+        {
+            AccountInformation ai = it.next();
+            if (block == null || blockSize >= TARGET_BLOCK_SIZE)
+            {
+                block = new ArrayList<AccountInformation>();
+                blocks.add(block);
+                blockSize = 0;
+            }
+            block.add(ai);
+            // Near enough without encoding the record
+            blockSize += 5 * 4 + ai.getAccountName().length() + fieldLength(ai.getUserId())
+                    + (ai.getPassword() == null ? 0 : ai.getPassword().length)
+                    + fieldLength(ai.getUrl()) + fieldLength(ai.getNotes());
+        }
+        return blocks;
+    }
+
+    /**
+     * A missing field is written as an empty one
+     */
+    private static int fieldLength(byte[] field)
+    {
+        return field == null ? 0 : field.length;
+    }
+
+    static byte[] encode(List<AccountInformation> accounts, Codec codec) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(accounts.size());
+        for (int i = 0; i < accounts.size(); i++)
+        {
+            AccountRecords.write(out, (AccountInformation) accounts.get(i));
+        }
+        out.close();
+        return codec.compress(bytes.toByteArray());
+    }
+
+    /**
+     * Decode a block from the first length bytes of block
+     */
+    static ArrayList<AccountInformation> decode(byte[] block, int length, Codec codec) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(codec.decompress(block, length)));
+        int numAccounts = in.readInt();
+        ArrayList<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < numAccounts; i++)
+        {
+            accounts.add(AccountRecords.read(in));
+        }
+        return accounts;
+    }
+
+}
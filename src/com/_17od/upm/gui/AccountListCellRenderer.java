@@ -0,0 +1,115 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.gui;
+
+import java.awt.Component;
+import java.awt.Rectangle;
+
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.ListCellRenderer;
+import javax.swing.UIManager;
+import javax.swing.border.Border;
+import javax.swing.border.EmptyBorder;
+
+
+/**
+ * Renders the names in the accounts list. One label is reused for every
+ * cell. Unlike DefaultListCellRenderer it looks up the borders it needs
+ * once rather than for each cell, and setting the label's properties
+ * doesn't notify listeners or queue up layouts and repaints, since the
+ * label is only ever used to stamp out cells. That also means names are
+ * always shown as plain text and never as HTML.
+ */
+public class AccountListCellRenderer extends JLabel implements ListCellRenderer
+{
+    private static final long serialVersionUID = 1L;
+    private Border noFocusBorder;
+    private Border focusBorder;
+
+    public AccountListCellRenderer()
+    {
+        setOpaque(true);
+    }
+
+    public void updateUI()
+    {
+        super.updateUI();
+        noFocusBorder = UIManager.getBorder("List.cellNoFocusBorder");
+        if (noFocusBorder == null)
+        {
+            noFocusBorder = new EmptyBorder(1, 1, 1, 1);
+        }
+        focusBorder = UIManager.getBorder("List.focusCellHighlightBorder");
+        if (focusBorder == null)
+        {
+            focusBorder = noFocusBorder;
+        }
+    }
+
+    public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus)
+    {
+        setText(value == null ? "" : value.toString());
+        if (isSelected)
+        {
+            setBackground(list.getSelectionBackground());
+            setForeground(list.getSelectionForeground());
+        }
+        else
+        {
+            setBackground(list.getBackground());
+            setForeground(list.getForeground());
+        }
+        setFont(list.getFont());
+        setEnabled(list.isEnabled());
+        setBorder(cellHasFocus ? focusBorder : noFocusBorder);
+        return this;
+    }
+
+    public void invalidate()
+    {
+    }
+
+    public void validate()
+    {
+    }
+
+    public void revalidate()
+    {
+    }
+
+    public void repaint(long tm, int x, int y, int width, int height)
+    {
+    }
+
+    public void repaint(Rectangle r)
+    {
+    }
+
+    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue)
+    {
+    }
+
+    public void firePropertyChange(String propertyName, boolean oldValue, boolean newValue)
+    {
+    }
+
+}
@@ -21,46 +21,95 @@
 package com._17od.upm.gui;
 
 import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
 
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com._17od.upm.crypto.CryptoException;
 import com._17od.upm.crypto.InvalidPasswordException;
+import com._17od.upm.crypto.KeyDerivation;
 import com._17od.upm.database.AccountInformation;
 import com._17od.upm.database.AccountsCSVMarshaller;
+import com._17od.upm.database.Codec;
 import com._17od.upm.database.ExportException;
 import com._17od.upm.database.ImportException;
 import com._17od.upm.database.PasswordDatabase;
 import com._17od.upm.database.PasswordDatabasePersistence;
 import com._17od.upm.database.ProblemReadingDatabaseFile;
+import com._17od.upm.util.FuzzyMatcher;
+import com._17od.upm.util.Preferences;
 import com._17od.upm.util.Translator;
+import com._17od.upm.util.Util;
 
 
 public class DatabaseActions
 {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
+    // how long deriving the key of a new database takes unless the
+    // preferences say otherwise
+    private static final int DEFAULT_KEY_DERIVATION_TIME = 500;
+    // how long typing in the search field has to pause for before searching
+    private static final int SEARCH_DELAY = 100;
+    // how many accounts loadAccountFields() reads at a time
+    private static final int FIELD_CHUNK_SIZE = 500;
 
     private MainWindow mainWindow;
     private PasswordDatabase database;
     private ArrayList<String> accountNames;
+    // the same accounts, indexed for filter()
+    private FuzzyMatcher accountIndex;
     private PasswordDatabasePersistence dbPers;
+    private DatabaseSaver databaseSaver;
+    private Timer searchTimer;
+    private SwingWorker<ArrayList<String>, Void> searchWorker;
+    private SwingWorker<Void, AccountInformation> accountFieldLoader;
+    // the accounts whose user IDs and URLs are in accountIndex
+    private HashSet<String> indexedAccounts = new HashSet<String>();
+    // true once a search has needed the user IDs and URLs of the database
+    private boolean accountFieldsWanted = false;
+    // true if more accounts were indexed while searchWorker was running,
+    // so the search has to run again when it finishes
+    private boolean searchStale = false;
+    // Goes up with every search so the results of older ones are ignored
+    private int searchGeneration = 0;
 
     public DatabaseActions(MainWindow mainWindow)
     {
         this.mainWindow = mainWindow;
         accountNames = new ArrayList<String>();
+        accountIndex = new FuzzyMatcher();
+        databaseSaver = new DatabaseSaver(mainWindow);
+        searchTimer = new Timer(SEARCH_DELAY, new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                startSearch();
+            }
+        });
+        searchTimer.setRepeats(false);
     }
 
     /**
@@ -85,16 +134,100 @@ public class DatabaseActions
             log.debug("user canceled dialog");
             return;
         }
+        // Make sure nothing is still being written to the old database
+        databaseSaver.flush();
         if (newDatabaseFile.exists())
         {
             log.debug("deleting existing Database");
             newDatabaseFile.delete();
         }
         database = new PasswordDatabase(newDatabaseFile);
-        dbPers = new PasswordDatabasePersistence(password);
+        dbPers = new PasswordDatabasePersistence(password, calibrateKeyDerivation());
+        setCompression();
         saveDatabase();
         mainWindow.doOpenDatabaseActions(database.getDatabaseFile().toString());
-        accountNames = getAccountNames();
+        loadAccountNames();
+    }
+
+    /**
+     * @return the key derivation for a new key, taking as long on this
+     * machine as the preferences say
+     */
+    private KeyDerivation calibrateKeyDerivation()
+    {
+        return KeyDerivation.calibrate(KeyDerivation.SCRYPT, getKeyDerivationTime());
+    }
+
+    /**
+     * Compress the database the way the preferences say. The database is
+     * rewritten by the next save if it's compressed some other way. With no
+     * preference it stays the way it is.
+     */
+    private void setCompression()
+    {
+        String compression = Preferences.get(Preferences.COMPRESSION);
+        if (compression == null || compression.trim().length() == 0)
+        {
+            return;
+        }
+        String codecName = compression.trim();
+        int codecId;
+        if (codecName.equalsIgnoreCase("store"))
+        {
+            codecId = Codec.STORE;
+        }
+        else if (codecName.equalsIgnoreCase("deflate"))
+        {
+            codecId = Codec.DEFLATE;
+        }
+        else if (codecName.equalsIgnoreCase("lz"))
+        {
+            codecId = Codec.LZ;
+        }
+        else
+        {
+            log.warn("Ignoring the invalid " + Preferences.COMPRESSION + " preference [" + compression + "]");
+            return;
+        }
+        int level = Deflater.DEFAULT_COMPRESSION;
+        String levelPreference = Preferences.get(Preferences.COMPRESSION_LEVEL);
+        if (levelPreference != null && levelPreference.trim().length() > 0)
+        {
+            try
+            {
+                level = Integer.parseInt(levelPreference.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Ignoring the invalid " + Preferences.COMPRESSION_LEVEL + " preference [" + levelPreference + "]");
+            }
+        }
+        try
+        {
+            dbPers.setCompression(codecId, level);
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn("Ignoring the invalid " + Preferences.COMPRESSION_LEVEL + " preference [" + levelPreference + "]");
+            dbPers.setCompression(codecId, Deflater.DEFAULT_COMPRESSION);
+        }
+    }
+
+    private int getKeyDerivationTime()
+    {
+        String time = Preferences.get(Preferences.KEY_DERIVATION_TIME);
+        if (time != null)
+        {
+            try
+            {
+                return Integer.parseInt(time.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                log.warn("Ignoring the invalid " + Preferences.KEY_DERIVATION_TIME + " preference [" + time + "]");
+            }
+        }
+        return DEFAULT_KEY_DERIVATION_TIME;
     }
 
     public void changeMasterPassword() throws IOException, ProblemReadingDatabaseFile,
@@ -112,12 +245,13 @@ public class DatabaseActions
             }
             else
             {
-                try
+                //The key is derived again and compared with the one in use,
+                //the database doesn't have to be read
+                if (dbPers.getEncryptionService().verifyPassword(password))
                 {
-                    dbPers.load(database.getDatabaseFile(), password);
                     passwordCorrect = true;
                 }
-                catch(InvalidPasswordException e)
+                else
                 {
                     JOptionPane.showMessageDialog(mainWindow, Translator.translate("incorrectPassword"));
                 }
@@ -135,23 +269,181 @@ public class DatabaseActions
             else
             {
                 //If the user clicked OK and the passwords match then change the database password
-                this.dbPers.getEncryptionService().initCipher(password);
-                saveDatabase();
+                // An old database gets a key derived the same way as a
+                // new one would
+                databaseSaver.changePassword(dbPers, database, password, calibrateKeyDerivation());
             }
         }
     }
 
     public ArrayList<String> getAccountNames()
     {
-        ArrayList<AccountInformation> dbAccounts = database.getAccounts();
-        ArrayList<String> accountNames = new ArrayList<String>();
-        for (int i=0; i<dbAccounts.size(); i++)
+        return database.getAccountNames();
+    }
+
+    /**
+     * Take the account names from a newly opened database. The user IDs and
+     * URLs are searched too once the first search has asked
+     * loadAccountFields() to read them.
+     */
+    private void loadAccountNames()
+    {
+        cancelSearch();
+        if (accountFieldLoader != null)
+        {
+            accountFieldLoader.cancel(true);
+            accountFieldLoader = null;
+        }
+        accountFieldsWanted = false;
+        accountNames = getAccountNames();
+        accountIndex = new FuzzyMatcher();
+        indexedAccounts.clear();
+        for (int i = 0; i < accountNames.size(); i++)
+        {
+            accountIndex.put(accountNames.get(i), null, null);
+        }
+    }
+
+    /**
+     * Start reading the user IDs and URLs the first time there's something
+     * to search them for
+     */
+    private void wantAccountFields(String text)
+    {
+        if (text.length() > 0 && !accountFieldsWanted && database != null)
+        {
+            accountFieldsWanted = true;
+            loadAccountFields();
+        }
+    }
+
+    /**
+     * Read the accounts in the background a chunk at a time and add their
+     * user IDs and URLs to the account index. The accounts are only looked
+     * at, so the ones that haven't been decrypted yet stay that way.
+     */
+    private void loadAccountFields()
+    {
+        if (accountFieldLoader != null)
+        {
+            accountFieldLoader.cancel(true);
+        }
+        final PasswordDatabase loadingDatabase = database;
+        final ArrayList<String> loadingNames = new ArrayList<String>(accountNames);
+        accountFieldLoader = new SwingWorker<Void, AccountInformation>()
+        {
+            protected Void doInBackground() throws IOException, CryptoException
+            {
+                LinkedHashSet<String> notRead = new LinkedHashSet<String>(loadingNames);
+                while (!notRead.isEmpty() && !isCancelled())
+                {
+                    ArrayList<String> chunk = new ArrayList<String>(FIELD_CHUNK_SIZE);
+                    Iterator<String> it = notRead.iterator();
+                    while (it.hasNext() && chunk.size() < FIELD_CHUNK_SIZE)
+                    {
+                        chunk.add(it.next());
+                    }
+                    Map<String, AccountInformation> accounts = loadingDatabase.peekAccounts(chunk);
+                    // Accounts in the same block as the ones asked for
+                    // come back too
+                    Iterator<AccountInformation> accountIt = accounts.values().iterator();
+                    while (accountIt.hasNext())
+                    {
+                        AccountInformation account = accountIt.next();
+                        if (notRead.remove(account.getAccountName()))
+                        {
+                            publish(account);
+                        }
+                    }
+                    // Any left have been deleted since
+                    notRead.removeAll(chunk);
+                }
+                return null;
+            }
+
+            protected void process(List<AccountInformation> accounts)
+            {
+                // Another database has been opened since
+                if (loadingDatabase != database || isCancelled())
+                {
+                    return;
+                }
+                for (int i = 0; i < accounts.size(); i++)
+                {
+                    // Accounts added or changed since have already been
+                    // indexed and deleted ones mustn't come back
+                    AccountInformation account = accounts.get(i);
+                    if (accountIndex.contains(account.getAccountName()) && !indexedAccounts.contains(account.getAccountName()))
+                    {
+                        indexFields(account);
+                    }
+                }
+                refreshSearch();
+            }
+
+            protected void done()
+            {
+                if (loadingDatabase != database || isCancelled())
+                {
+                    return;
+                }
+                accountFieldLoader = null;
+                try
+                {
+                    get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e)
+                {
+                    log.error("Problem reading the accounts to search them", e);
+                }
+            }
+        };
+        accountFieldLoader.execute();
+    }
+
+    private void indexAccount(AccountInformation account)
+    {
+        cancelSearch();
+        String accountName = account.getAccountName();
+        if (!accountIndex.contains(accountName))
         {
-            AccountInformation ai = (AccountInformation) dbAccounts.get(i);
-            String accountName = (String) ai.getAccountName();
             accountNames.add(accountName);
         }
-        return accountNames;
+        indexFields(account);
+    }
+
+    /**
+     * Put the user ID and URL of an account that's already in the index
+     * into it without disturbing a search that's under way
+     */
+    private void indexFields(AccountInformation account)
+    {
+        accountIndex.put(account.getAccountName(), fieldText(account.getUserId()), fieldText(account.getUrl()));
+        indexedAccounts.add(account.getAccountName());
+    }
+
+    private static String fieldText(byte[] field)
+    {
+        return field == null ? null : new String(field);
+    }
+
+    /**
+     * @return false if there's no account called accountName
+     */
+    private boolean removeAccountName(String accountName)
+    {
+        cancelSearch();
+        if (accountIndex.remove(accountName))
+        {
+            accountNames.remove(accountName);
+            indexedAccounts.remove(accountName);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -247,10 +539,13 @@ public class DatabaseActions
 
             if(true == okClicked)
             {
+                // Make sure the file isn't read while changes are still being written to it
+                databaseSaver.flush();
                 try
                 {
                     dbPers = new PasswordDatabasePersistence();
                     database = dbPers.load(new File(databaseFilename), password);
+                    setCompression();
                     passwordCorrect = true;
                 }
                 catch(InvalidPasswordException e)
@@ -263,7 +558,7 @@ public class DatabaseActions
         if(passwordCorrect)
         {
             mainWindow.doOpenDatabaseActions(database.getDatabaseFile().toString());
-            accountNames = getAccountNames();
+            loadAccountNames();
         }
     }
 
@@ -278,7 +573,7 @@ public class DatabaseActions
             if(databaseFile.exists())
             {
                 openDatabase(databaseFile.getAbsolutePath());
-                accountNames = getAccountNames();
+                loadAccountNames();
             }
             else
             {
@@ -299,12 +594,7 @@ public class DatabaseActions
             {
                 //Remove the account from the listview, accountNames arraylist & the database
                 listview.removeElement(selectedAccName);
-                int i = accountNames.indexOf(selectedAccName);
-                if(-1 != i)
-                {
-                    accountNames.remove(i);
-                }
-                else
+                if (!removeAccountName(selectedAccName))
                 {
                     System.err.println("Could not delete the Account " + selectedAccName + " from accountNames !");
                 }
@@ -330,20 +620,19 @@ public class DatabaseActions
             database.deleteAccount(accInfo.getAccountName());
             database.addAccount(accInfo);
             saveDatabase();
-            accountNames = getAccountNames();
-            accountNames.add(accInfo.getAccountName());
+            indexAccount(accInfo);
             //[1375390] Ensure that the listview is properly filtered after an add
             filter();
         }
     }
 
-    public AccountInformation getSelectedAccount()
+    public AccountInformation getSelectedAccount() throws IOException, CryptoException
     {
         String selectedAccName = (String) mainWindow.getAccountsListview().getSelectedValue();
         return database.getAccount(selectedAccName);
     }
 
-    public void viewAccount()
+    public void viewAccount() throws IOException, CryptoException
     {
         AccountInformation accInfo = getSelectedAccount();
         AccountDialog accDialog = new AccountDialog(accInfo, mainWindow, true, accountNames);
@@ -368,32 +657,133 @@ public class DatabaseActions
             database.deleteAccount(selectedAccName);
             database.addAccount(accInfo);
             saveDatabase();
-            //If the new account name is different to the old account name then update the
-            //accountNames array and refilter the listview
-            if (!accInfo.getAccountName().equals(selectedAccName))
-            {
-                int i = accountNames.indexOf(selectedAccName);
-                accountNames.remove(i);
-                accountNames.add(accInfo.getAccountName());
-                //[1375390] Ensure that the listview is properly filtered after an edit
-                filter();
-            }
+            //Update the accountNames array and the index, and refilter the listview
+            //as any of the name, user ID or URL may now match differently
+            removeAccountName(selectedAccName);
+            indexAccount(accInfo);
+            //[1375390] Ensure that the listview is properly filtered after an edit
+            filter();
         }
     }
 
+    /**
+     * Filter the listview by the text in the search field straight away.
+     * Any search started by filterLater() is abandoned.
+     */
     public void filter()
     {
-        String filterStr = mainWindow.getSearchField().getText().toLowerCase();
-        ArrayList<String> filteredAccountsList = new ArrayList<String>();
-        for(int i = 0; i < accountNames.size(); i++)
+        cancelSearch();
+        String text = mainWindow.getSearchField().getText();
+        wantAccountFields(text);
+        showFilteredAccounts(accountIndex.search(text), text.length() > 0);
+    }
+
+    /**
+     * Filter the listview by the text in the search field once the user
+     * stops typing for a moment. The search runs in the background and
+     * only the results for the latest text are shown.
+     */
+    public void filterLater()
+    {
+        searchTimer.restart();
+    }
+
+    /**
+     * Bring the listview up to date with the search field if a search is
+     * waiting to start or still running
+     */
+    public void finishFiltering()
+    {
+        if (searchTimer.isRunning() || searchWorker != null)
         {
-            String accountName = (String) accountNames.get(i);
-            if(filterStr.equals("") || accountName.toLowerCase().indexOf(filterStr) != -1)
+            filter();
+        }
+    }
+
+    private void cancelSearch()
+    {
+        searchTimer.stop();
+        searchGeneration++;
+        searchStale = false;
+        if (searchWorker != null)
+        {
+            searchWorker.cancel(true);
+            searchWorker = null;
+        }
+    }
+
+    private void startSearch()
+    {
+        cancelSearch();
+        final int generation = searchGeneration;
+        final String text = mainWindow.getSearchField().getText();
+        final FuzzyMatcher index = accountIndex;
+        wantAccountFields(text);
+        searchWorker = new SwingWorker<ArrayList<String>, Void>()
+        {
+            protected ArrayList<String> doInBackground()
+            {
+                return index.search(text);
+            }
+
+            protected void done()
             {
-                filteredAccountsList.add(accountName);
+                // A later search or change to the accounts has taken over
+                if (generation != searchGeneration || isCancelled())
+                {
+                    return;
+                }
+                searchWorker = null;
+                try
+                {
+                    showFilteredAccounts(get(), text.length() > 0);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e)
+                {
+                    log.error("Problem searching the accounts", e);
+                }
+                if (searchStale)
+                {
+                    startSearch();
+                }
             }
+        };
+        searchWorker.execute();
+    }
+
+    /**
+     * Search for the text in the search field again now that more accounts
+     * have been indexed. A search that's waiting to start will see them
+     * anyway and one that's running is left to finish and then run again,
+     * so its results still get shown while the accounts are being read.
+     */
+    private void refreshSearch()
+    {
+        if (mainWindow.getSearchField().getText().length() == 0 || searchTimer.isRunning())
+        {
+            return;
+        }
+        if (searchWorker != null)
+        {
+            searchStale = true;
+        }
+        else
+        {
+            startSearch();
         }
-        mainWindow.populateListview(filteredAccountsList);
+    }
+
+    /**
+     * @param ranked true if filteredAccountsList is in order of how well
+     * the accounts matched rather than in no particular order
+     */
+    private void showFilteredAccounts(ArrayList<String> filteredAccountsList, boolean ranked)
+    {
+        mainWindow.populateListview(filteredAccountsList, ranked);
         //If there's only one item in the Listview then select it
         if(mainWindow.getAccountsListview().getModel().getSize() == 1)
         {
@@ -410,6 +800,14 @@ public class DatabaseActions
         if(oppDialog.hasLanguageChanged())
         {
             mainWindow.initialiseControlsWithDefaultLanguage();
+            //Sort the accounts for the new language, keeping the same one selected
+            JList accountsListview = mainWindow.getAccountsListview();
+            Object selectedValue = accountsListview.getSelectedValue();
+            ((SortedListModel) accountsListview.getModel()).setCollator(Translator.getCollator());
+            if(selectedValue != null)
+            {
+                accountsListview.setSelectedValue(selectedValue, true);
+            }
             if(database != null)
             {
                 setStatusBarText();
@@ -432,10 +830,28 @@ public class DatabaseActions
 
     public void exitApplication()
     {
+        // Wait for the background saves and then try again with anything
+        // they couldn't save
+        databaseSaver.flush();
+        if (database != null && dbPers.needsSaving(database))
+        {
+            try
+            {
+                dbPers.save(database);
+            }
+            catch (IOException e)
+            {
+                Util.errorHandler(e);
+            }
+            catch (CryptoException e)
+            {
+                Util.errorHandler(e);
+            }
+        }
         System.exit(0);
     }
 
-    public void export()
+    public void export() throws IOException, CryptoException
     {
         File exportFile = getSaveAsFile(Translator.translate("exportFile"));
         if (exportFile == null)
@@ -509,9 +925,9 @@ public class DatabaseActions
                             AccountInformation accountToImport = (AccountInformation) accountsToImport.get(i);
                             database.deleteAccount(accountToImport.getAccountName());
                             database.addAccount(accountToImport);
+                            indexAccount(accountToImport);
                         }
                         saveDatabase();
-                        accountNames = getAccountNames();
                         filter();
                     }
                 }
@@ -580,7 +996,7 @@ public class DatabaseActions
 
     private void saveDatabase() throws IOException, CryptoException
     {
-        dbPers.save(database);
+        databaseSaver.save(dbPers, database);
     }
 
     private void setStatusBarText()
@@ -0,0 +1,218 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.gui;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.KeyDerivation;
+import com._17od.upm.database.PasswordDatabase;
+import com._17od.upm.database.PasswordDatabasePersistence;
+import com._17od.upm.util.Translator;
+import com._17od.upm.util.Util;
+
+/**
+ * Saves the database on a background thread so the UI doesn't freeze while
+ * the database is encrypted and written to disk. Saves are done one at a
+ * time in the order they were asked for. A save asked for while another
+ * one for the same database is still waiting to start is dropped, as the
+ * waiting one will pick up all the changes anyway. Changes to the master
+ * password are queued with the saves as they can mean writing the whole
+ * database too.
+ */
+public class DatabaseSaver
+{
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private MainWindow mainWindow;
+    private ExecutorService executor;
+    private PasswordDatabase waitingDatabase;
+    private PasswordDatabasePersistence lastPersistence;
+    private int savesInProgress = 0;
+    private String statusBeforeSave;
+
+    public DatabaseSaver(MainWindow mainWindow)
+    {
+        this.mainWindow = mainWindow;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "UPM database saver");
+                // flush() is used to make sure everything is written before exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue up a save of the changes made to database. Must be called on the
+     * Event Dispatch Thread.
+     */
+    public void save(final PasswordDatabasePersistence dbPers, final PasswordDatabase database)
+    {
+        synchronized (this)
+        {
+            lastPersistence = dbPers;
+            if (waitingDatabase == database)
+            {
+                return;
+            }
+            waitingDatabase = database;
+        }
+        queue(new Callable<Void>()
+        {
+            public Void call() throws IOException, CryptoException
+            {
+                synchronized (DatabaseSaver.this)
+                {
+                    if (waitingDatabase == database)
+                    {
+                        waitingDatabase = null;
+                    }
+                }
+                dbPers.save(database);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Queue up a change to the master password of database, followed by a
+     * save so a database that has to be rewritten for it gets the new
+     * password straight away. Must be called on the Event Dispatch Thread.
+     * @param upgrade the key derivation to use if the database's is legacy
+     */
+    public void changePassword(final PasswordDatabasePersistence dbPers, final PasswordDatabase database, final char[] password, final KeyDerivation upgrade)
+    {
+        synchronized (this)
+        {
+            lastPersistence = dbPers;
+        }
+        queue(new Callable<Void>()
+        {
+            public Void call() throws IOException, CryptoException
+            {
+                dbPers.changePassword(database, password, upgrade);
+                dbPers.save(database);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run task after everything queued before it, showing that the
+     * database is being saved until it's finished
+     */
+    private void queue(final Callable<Void> task)
+    {
+        if (savesInProgress++ == 0)
+        {
+            JLabel statusBar = mainWindow.getStatusBar();
+            statusBeforeSave = statusBar.getText();
+            statusBar.setText(Translator.translate("savingDatabase"));
+        }
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                Exception exception = null;
+                try
+                {
+                    task.call();
+                }
+                catch (Exception e)
+                {
+                    // The changes stay pending so the next save retries them,
+                    // and a password change that failed leaves the old
+                    // password in use
+                    log.error("Could not save the database", e);
+                    exception = e;
+                }
+                final Exception saveException = exception;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        // Put the status back unless something else, such as
+                        // opening another database, has changed it since
+                        JLabel statusBar = mainWindow.getStatusBar();
+                        if (--savesInProgress == 0 && Translator.translate("savingDatabase").equals(statusBar.getText()))
+                        {
+                            statusBar.setText(statusBeforeSave);
+                        }
+                        if (saveException != null)
+                        {
+                            Util.errorHandler(saveException);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Wait for all the saves asked for so far to finish, including any
+     * compaction of the journal they started
+     */
+    public void flush()
+    {
+        PasswordDatabasePersistence dbPers;
+        synchronized (this)
+        {
+            dbPers = lastPersistence;
+        }
+        try
+        {
+            executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                }
+            }).get();
+            if (dbPers != null)
+            {
+                dbPers.waitForCompaction();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            log.error("Problem waiting for the database to be saved", e);
+        }
+    }
+
+}
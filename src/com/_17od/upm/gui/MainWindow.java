@@ -35,6 +35,8 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -76,6 +78,10 @@ public class MainWindow extends JFrame implements ActionListener
 {
     private static final long serialVersionUID = 1L;
     private static final String applicationName = "Universal Password Manager";
+    // When more accounts than this are shown the accounts list sizes its
+    // cells from PROTOTYPE_ACCOUNT_NAME instead of measuring every name
+    static final int LARGE_LIST_SIZE = 5000;
+    private static final String PROTOTYPE_ACCOUNT_NAME = "A fairly long account name";
     public static final String NEW_DATABASE_TXT = "newDatabaseMenuItem";
     public static final String OPEN_DATABASE_TXT = "openDatabaseMenuItem";
     public static final String CHANGE_MASTER_PASSWORD_TXT = "changeMasterPasswordMenuItem";
@@ -138,7 +144,16 @@ public class MainWindow extends JFrame implements ActionListener
         }
         Translator.initialise();
         setIconImage(Util.loadImage("upm.gif").getImage());
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Closing the window goes through exitApplication() so that any
+        // background saves get finished first
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter()
+        {
+            public void windowClosing(WindowEvent e)
+            {
+                dbActions.exitApplication();
+            }
+        });
         dbActions = new DatabaseActions(this);
         //Set up the content pane.
         addComponentsToPane();
@@ -290,11 +305,11 @@ public class MainWindow extends JFrame implements ActionListener
             }
             public void insertUpdate(DocumentEvent e)
             {
-                dbActions.filter();
+                dbActions.filterLater();
             }
             public void removeUpdate(DocumentEvent e)
             {
-                dbActions.filter();
+                dbActions.filterLater();
             }
         });
         searchField.addKeyListener(new KeyAdapter()
@@ -311,6 +326,7 @@ public class MainWindow extends JFrame implements ActionListener
                     //in the listview then open that item (this code assumes that the one item in
                     //the listview has already been selected. this is done automatically in the
                     //DatabaseActions.filter() method)
+                    dbActions.finishFiltering();
                     if (accountsListview.getModel().getSize() == 1)
                     {
                         viewAccountMenuItem.doClick();
@@ -349,6 +365,7 @@ public class MainWindow extends JFrame implements ActionListener
         accountsListview.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         accountsListview.setSelectedIndex(0);
         accountsListview.setVisibleRowCount(10);
+        setLargeListMode(accountsListview, false);
         accountsListview.setModel(new SortedListModel());
         JScrollPane accountsScrollList = new JScrollPane(accountsListview, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         accountsListview.addFocusListener(new FocusAdapter()
@@ -601,14 +618,36 @@ public class MainWindow extends JFrame implements ActionListener
 
     private void copyUsernameToClipboard()
     {
-        AccountInformation accInfo = dbActions.getSelectedAccount();
-        copyToClipboard(new String(accInfo.getUserId()));
+        try
+        {
+            AccountInformation accInfo = dbActions.getSelectedAccount();
+            copyToClipboard(new String(accInfo.getUserId()));
+        }
+        catch(IOException e)
+        {
+            Util.errorHandler(e);
+        }
+        catch(CryptoException e)
+        {
+            Util.errorHandler(e);
+        }
     }
 
     private void copyPasswordToClipboard()
     {
-        AccountInformation accInfo = dbActions.getSelectedAccount();
-        copyToClipboard(new String(accInfo.getPassword()));
+        try
+        {
+            AccountInformation accInfo = dbActions.getSelectedAccount();
+            copyToClipboard(new String(accInfo.getPassword()));
+        }
+        catch(IOException e)
+        {
+            Util.errorHandler(e);
+        }
+        catch(CryptoException e)
+        {
+            Util.errorHandler(e);
+        }
     }
 
     private void copyToClipboard(String s)
@@ -730,7 +769,18 @@ public class MainWindow extends JFrame implements ActionListener
         }
         else if (event.getActionCommand() == MainWindow.VIEW_ACCOUNT_TXT)
         {
-            dbActions.viewAccount();
+            try
+            {
+                dbActions.viewAccount();
+            }
+            catch(IOException e)
+            {
+                Util.errorHandler(e);
+            }
+            catch(CryptoException e)
+            {
+                Util.errorHandler(e);
+            }
         }
         else if (event.getActionCommand() == MainWindow.OPTIONS_TXT)
         {
@@ -773,7 +823,18 @@ public class MainWindow extends JFrame implements ActionListener
         }
         else if (event.getActionCommand() == MainWindow.EXPORT_TXT)
         {
-            dbActions.export();
+            try
+            {
+                dbActions.export();
+            }
+            catch(IOException e)
+            {
+                Util.errorHandler(e);
+            }
+            catch(CryptoException e)
+            {
+                Util.errorHandler(e);
+            }
         }
         else if (event.getActionCommand() == MainWindow.IMPORT_TXT)
         {
@@ -858,17 +919,58 @@ public class MainWindow extends JFrame implements ActionListener
     }
 
     public void populateListview(ArrayList<String> accountNames)
+    {
+        populateListview(accountNames, false);
+    }
+
+    /**
+     * @param ranked true to show accountNames in the order given, e.g. best
+     * search result first, rather than sorted by name
+     */
+    public void populateListview(ArrayList<String> accountNames, boolean ranked)
     {
         SortedListModel listview = (SortedListModel) getAccountsListview().getModel();
-        listview.clear();
         getAccountsListview().clearSelection();
-        for(int i=0; i<accountNames.size(); i++)
+        setLargeListMode(getAccountsListview(), accountNames.size() > LARGE_LIST_SIZE);
+        if (ranked)
         {
-            listview.addElement(accountNames.get(i));
+            listview.setRanked(accountNames);
+        }
+        else
+        {
+            listview.setAll(accountNames);
         }
         setButtonState();
     }
 
+    /**
+     * Render the cells of listview with an AccountListCellRenderer. When
+     * large is true give every cell the size of a prototype name so that
+     * only the rows on screen are ever rendered. Otherwise each name is
+     * measured, so the list can be scrolled sideways to see long ones.
+     * <p>
+     * JList has a type parameter from Java 7 on, so there these calls on a
+     * raw JList are unchecked.
+     */
+    @SuppressWarnings("unchecked")
+    static void setLargeListMode(JList listview, boolean large)
+    {
+        if (!(listview.getCellRenderer() instanceof AccountListCellRenderer))
+        {
+            listview.setCellRenderer(new AccountListCellRenderer());
+        }
+        if (large && listview.getPrototypeCellValue() == null)
+        {
+            listview.setPrototypeCellValue(PROTOTYPE_ACCOUNT_NAME);
+        }
+        else if (!large && listview.getPrototypeCellValue() != null)
+        {
+            listview.setPrototypeCellValue(null);
+            listview.setFixedCellWidth(-1);
+            listview.setFixedCellHeight(-1);
+        }
+    }
+
     public void doOpenDatabaseActions(String dataBaseFileName)
     {
         addAccountButton.setEnabled(true);
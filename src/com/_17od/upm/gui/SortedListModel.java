@@ -20,65 +20,312 @@
  */
 package com._17od.upm.gui;
 
+import java.text.CollationKey;
 import java.text.Collator;
-import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import javax.swing.AbstractListModel;
 
+import com._17od.upm.util.Translator;
 
+
+/**
+ * A list model that keeps its elements in the order of a Collator, by
+ * default the one for the language the user has chosen. Each element is
+ * held as a CollationKey made when it's added, so sorting and searching
+ * compare the keys rather than running the Collator over the strings every
+ * time. The keys are held in a sorted ArrayList so an element can be got by
+ * its index straight away and found or inserted with a binary search.
+ * Elements that compare as equal are only held once.
+ * <p>
+ * Search results that have been ranked can be shown in their own order
+ * with setRanked() until setAll() sorts the list again.
+ * <p>
+ * Listeners are told exactly which rows were added or removed so a JList
+ * only has to repaint what changed.
+ */
 public class SortedListModel extends AbstractListModel
 {
     private static final long serialVersionUID = 1L;
-    private TreeSet<String> model;
+    // setAll() replaces everything with one event rather than fire more
+    // than this many
+    private static final int MAX_EVENTS = 16;
+    private ArrayList<CollationKey> model;
+    private Collator collator;
+    // the elements in the order setRanked() was given them, or null when
+    // they're sorted
+    private ArrayList<String> ranked;
 
     public SortedListModel()
     {
-        model = new TreeSet<String>(new Comparator<String>()
+        this(Translator.getCollator());
+    }
+
+    public SortedListModel(Collator collator)
+    {
+        model = new ArrayList<CollationKey>();
+        this.collator = collator;
+    }
+
+    /**
+     * Sort the elements with collator from now on, e.g. because the user
+     * has changed language. The keys for all the elements are made again.
+     */
+    public void setCollator(Collator collator)
+    {
+        this.collator = collator;
+        ArrayList<String> elements = new ArrayList<String>(model.size());
+        for (int i = 0; i < model.size(); i++)
         {
-            public int compare(String str1, String str2)
-            {
-                Collator collator = Collator.getInstance();
-                int result = collator.compare(str1, str2);
-                return result;
-            }
-        });
+            elements.add(model.get(i).getSourceString());
+        }
+        model = sortedKeys(elements);
+        if (model.size() > 0)
+        {
+            fireContentsChanged(this, 0, model.size() - 1);
+        }
     }
 
     public int getSize()
     {
+        if (ranked != null)
+        {
+            return ranked.size();
+        }
         return model.size();
     }
 
     public String getElementAt(int index)
     {
-        return (String) model.toArray()[index];
+        if (ranked != null)
+        {
+            return ranked.get(index);
+        }
+        return model.get(index).getSourceString();
     }
 
+    /**
+     * Add element to the list. If the list is ranked it goes on the end.
+     */
     public void addElement(String element)
     {
-        if (model.add(element))
+        if (ranked != null)
         {
-            fireContentsChanged(this, 0, getSize());
+            if (!ranked.contains(element))
+            {
+                ranked.add(element);
+                fireIntervalAdded(this, ranked.size() - 1, ranked.size() - 1);
+            }
+            return;
+        }
+        CollationKey key = collator.getCollationKey(element);
+        int index = Collections.binarySearch(model, key);
+        if (index < 0)
+        {
+            index = -index - 1;
+            model.add(index, key);
+            fireIntervalAdded(this, index, index);
         }
     }
 
     public void clear()
     {
+        int size = getSize();
+        ranked = null;
+        if (size > 0)
+        {
+            model.clear();
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+
+    /**
+     * Replace the elements with elements. The old and new elements are
+     * compared so that only the rows that come or go are reported to the
+     * listeners, or if there are lots of those the whole list is reported
+     * as changed in one go.
+     */
+    public void setAll(Collection<String> elements)
+    {
+        ArrayList<CollationKey> newModel = sortedKeys(elements);
+        if (ranked != null)
+        {
+            // Going back to sorted order moves everything anyway
+            int changed = Math.max(ranked.size(), newModel.size());
+            ranked = null;
+            model = newModel;
+            if (changed > 0)
+            {
+                fireContentsChanged(this, 0, changed - 1);
+            }
+            return;
+        }
+
+        // Work out the runs of rows removed and added. Each run's index is
+        // where it is once the runs before it have been applied.
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        int oldIndex = 0;
+        int newIndex = 0;
+        int position = 0;
+        boolean replaced = false;
+        while (oldIndex < model.size() || newIndex < newModel.size())
+        {
+            int order = compare(oldIndex, newModel, newIndex);
+            if (order == 0)
+            {
+                // Equal according to the comparator but not the same string
+                replaced |= !model.get(oldIndex).getSourceString().equals(newModel.get(newIndex).getSourceString());
+                oldIndex++;
+                newIndex++;
+                position++;
+            }
+            else if (order < 0)
+            {
+                int start = oldIndex;
+                while (oldIndex < model.size() && compare(oldIndex, newModel, newIndex) < 0)
+                {
+                    oldIndex++;
+                }
+                runs.add(new int[] {position, start - oldIndex, start});
+            }
+            else
+            {
+                int start = newIndex;
+                while (newIndex < newModel.size() && compare(oldIndex, newModel, newIndex) > 0)
+                {
+                    newIndex++;
+                }
+                runs.add(new int[] {position, newIndex - start, start});
+                position += newIndex - start;
+            }
+            if (runs.size() > MAX_EVENTS)
+            {
+                break;
+            }
+        }
+
+        if (runs.size() > MAX_EVENTS || replaced)
+        {
+            int changed = Math.max(model.size(), newModel.size());
+            model = newModel;
+            if (changed > 0)
+            {
+                fireContentsChanged(this, 0, changed - 1);
+            }
+            return;
+        }
+        for (int i = 0; i < runs.size(); i++)
+        {
+            // {position, -rows removed or rows added, index in newModel}
+            int[] run = runs.get(i);
+            if (run[1] < 0)
+            {
+                model.subList(run[0], run[0] - run[1]).clear();
+                fireIntervalRemoved(this, run[0], run[0] - run[1] - 1);
+            }
+            else
+            {
+                model.addAll(run[0], newModel.subList(run[2], run[2] + run[1]));
+                fireIntervalAdded(this, run[0], run[0] + run[1] - 1);
+            }
+        }
+    }
+
+    /**
+     * Replace the elements with elements, kept in the order they're given
+     * in rather than sorted, e.g. best search result first. The whole list
+     * is reported as changed unless it's the same as before.
+     */
+    public void setRanked(List<String> elements)
+    {
+        if (ranked != null && ranked.equals(elements))
+        {
+            return;
+        }
+        int changed = Math.max(getSize(), elements.size());
+        ranked = new ArrayList<String>(elements);
         model.clear();
-        fireContentsChanged(this, 0, getSize());
+        if (changed > 0)
+        {
+            fireContentsChanged(this, 0, changed - 1);
+        }
+    }
+
+    /**
+     * @return the keys for elements in order, keeping only the first of any
+     * that compare as equal
+     */
+    private ArrayList<CollationKey> sortedKeys(Collection<String> elements)
+    {
+        ArrayList<CollationKey> keys = new ArrayList<CollationKey>(elements.size());
+        for (String element : elements)
+        {
+            keys.add(collator.getCollationKey(element));
+        }
+        Collections.sort(keys);
+        int kept = 0;
+        for (int i = 0; i < keys.size(); i++)
+        {
+            if (kept == 0 || keys.get(kept - 1).compareTo(keys.get(i)) != 0)
+            {
+                keys.set(kept++, keys.get(i));
+            }
+        }
+        keys.subList(kept, keys.size()).clear();
+        return keys;
+    }
+
+    /**
+     * Compare the old element at oldIndex with the new one at newIndex. An
+     * index past the end comes after everything.
+     */
+    private int compare(int oldIndex, ArrayList<CollationKey> newModel, int newIndex)
+    {
+        if (oldIndex == model.size())
+        {
+            return 1;
+        }
+        if (newIndex == newModel.size())
+        {
+            return -1;
+        }
+        return model.get(oldIndex).compareTo(newModel.get(newIndex));
     }
 
     public boolean contains(String element)
     {
-        return model.contains(element);
+        if (ranked != null)
+        {
+            return ranked.contains(element);
+        }
+        return Collections.binarySearch(model, collator.getCollationKey(element)) >= 0;
     }
 
     public boolean removeElement(String element)
     {
-        boolean removed = model.remove(element);
+        int index;
+        if (ranked != null)
+        {
+            index = ranked.indexOf(element);
+        }
+        else
+        {
+            index = Collections.binarySearch(model, collator.getCollationKey(element));
+        }
+        boolean removed = index >= 0;
         if(removed)
         {
-            fireContentsChanged(this, 0, getSize());
+            if (ranked != null)
+            {
+                ranked.remove(index);
+            }
+            else
+            {
+                model.remove(index);
+            }
+            fireIntervalRemoved(this, index, index);
         }
         return removed;
     }
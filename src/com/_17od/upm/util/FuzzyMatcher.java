@@ -0,0 +1,413 @@
+/*
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the accounts whose name, user ID or URL contain the characters of
+ * some text in the same order, though not necessarily next to each other,
+ * the way the quick open box of an editor does. Case is ignored the same
+ * way String.toLowerCase() ignores it. Matches score more for characters
+ * that follow each other or start a word and less for the gaps between
+ * them, and the results are ranked best first. A match in the account name
+ * counts for more than the same match in the user ID or URL.
+ * <p>
+ * The characters of every field are kept in lower case so scoring a match
+ * doesn't allocate anything. The results of the last few searches are
+ * kept. Anything matching a text also matches the text with characters
+ * left out, so typing another character only has to score what the
+ * previous text matched, and deleting one usually finds the results
+ * already there. Changing an account throws the results away.
+ * <p>
+ * It's safe to search on one thread while accounts are changed on another.
+ */
+public class FuzzyMatcher
+{
+    // What a matched character is worth, and the bonuses it gets for
+    // following the previous matched character, for starting a word and
+    // for being the first character of the field
+    private static final int MATCH = 16;
+    private static final int CONSECUTIVE = 16;
+    private static final int WORD_START = 8;
+    private static final int FIELD_START = 8;
+    // Taken off for the first character skipped between two matched
+    // characters and for each one after that
+    private static final int GAP_START = 3;
+    private static final int GAP_EXTENSION = 1;
+    // Taken off matches in the user ID or URL
+    private static final int OTHER_FIELD = 8;
+    static final int NO_MATCH = Integer.MIN_VALUE;
+
+    private static final int NAME = 0;
+    private static final int FIELDS = 3;
+    private static final int CACHED_SEARCHES = 16;
+
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    // indexed by id, null where an id isn't in use
+    private String[] names = new String[16];
+    // the lower case characters of the name, user ID and URL of each
+    // account, indexed by id * FIELDS + field
+    private char[][] fields = new char[16 * FIELDS][];
+    // the characters in each field, see charMask()
+    private long[] masks = new long[16 * FIELDS];
+    private int[] freeIds = new int[16];
+    private int freeIdCount = 0;
+    private int idCount = 0;
+    // the ids each recent search text, in lower case, matched, best first.
+    // The least recently used is dropped first.
+    private final LinkedHashMap<String, int[]> searches = new LinkedHashMap<String, int[]>(CACHED_SEARCHES * 2, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest)
+        {
+            return size() > CACHED_SEARCHES;
+        }
+    };
+
+    /**
+     * Add an account, or replace the user ID and URL of one that's already
+     * there. userId and url can be null if they aren't known yet.
+     */
+    public synchronized void put(String name, String userId, String url)
+    {
+        Integer boxedId = ids.get(name);
+        int id;
+        if (boxedId != null)
+        {
+            id = boxedId.intValue();
+        }
+        else if (freeIdCount > 0)
+        {
+            id = freeIds[--freeIdCount];
+        }
+        else
+        {
+            id = idCount++;
+            if (id == names.length)
+            {
+                names = Arrays.copyOf(names, id * 2);
+                fields = Arrays.copyOf(fields, id * 2 * FIELDS);
+                masks = Arrays.copyOf(masks, id * 2 * FIELDS);
+            }
+        }
+        searches.clear();
+        names[id] = name;
+        ids.put(name, id);
+        setField(id * FIELDS, name);
+        setField(id * FIELDS + 1, userId);
+        setField(id * FIELDS + 2, url);
+    }
+
+    private void setField(int index, String value)
+    {
+        if (value == null)
+        {
+            fields[index] = null;
+            masks[index] = 0;
+        }
+        else
+        {
+            fields[index] = value.toLowerCase().toCharArray();
+            masks[index] = charMask(fields[index]);
+        }
+    }
+
+    /**
+     * @return false if there's no account called name
+     */
+    public synchronized boolean remove(String name)
+    {
+        Integer boxedId = ids.remove(name);
+        if (boxedId == null)
+        {
+            return false;
+        }
+        searches.clear();
+        int id = boxedId.intValue();
+        names[id] = null;
+        for (int field = 0; field < FIELDS; field++)
+        {
+            setField(id * FIELDS + field, null);
+        }
+        if (freeIdCount == freeIds.length)
+        {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeIdCount++] = id;
+        return true;
+    }
+
+    public synchronized boolean contains(String name)
+    {
+        return ids.containsKey(name);
+    }
+
+    public synchronized int size()
+    {
+        return ids.size();
+    }
+
+    /**
+     * @return the names of the accounts matching text, best match first.
+     * Every name is returned, in no particular order, if text is empty.
+     */
+    public synchronized ArrayList<String> search(String text)
+    {
+        if (text.length() == 0)
+        {
+            return new ArrayList<String>(ids.keySet());
+        }
+        String lowerCaseText = text.toLowerCase();
+        int[] matchingIds = searches.get(lowerCaseText);
+        if (matchingIds == null)
+        {
+            matchingIds = findIds(lowerCaseText);
+            searches.put(lowerCaseText, matchingIds);
+        }
+        ArrayList<String> matches = new ArrayList<String>(matchingIds.length);
+        for (int i = 0; i < matchingIds.length; i++)
+        {
+            matches.add(names[matchingIds[i]]);
+        }
+        return matches;
+    }
+
+    private int[] findIds(String lowerCaseText)
+    {
+        // A recent search for lowerCaseText with characters left out has
+        // matched everything lowerCaseText will. Use the one that matched
+        // the fewest.
+        int[] candidates = null;
+        Iterator<Map.Entry<String, int[]>> it = searches.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, int[]> search = it.next();
+            if ((candidates == null || search.getValue().length < candidates.length)
+                    && isSubsequence(search.getKey(), lowerCaseText))
+            {
+                candidates = search.getValue();
+            }
+        }
+        int candidateCount = candidates == null ? idCount : candidates.length;
+
+        char[] query = lowerCaseText.toCharArray();
+        long queryMask = charMask(query);
+        final int[] scores = new int[idCount];
+        Integer[] matched = new Integer[candidateCount];
+        int matchCount = 0;
+        for (int i = 0; i < candidateCount; i++)
+        {
+            int id = candidates == null ? i : candidates[i];
+            if (names[id] == null)
+            {
+                continue;
+            }
+            int best = NO_MATCH;
+            for (int field = 0; field < FIELDS; field++)
+            {
+                int index = id * FIELDS + field;
+                // Skip fields that don't have all the characters
+                if (fields[index] == null || (queryMask & ~masks[index]) != 0)
+                {
+                    continue;
+                }
+                int score = score(query, fields[index]);
+                if (score != NO_MATCH)
+                {
+                    best = Math.max(best, field == NAME ? score : score - OTHER_FIELD);
+                }
+            }
+            if (best != NO_MATCH)
+            {
+                scores[id] = best;
+                matched[matchCount++] = Integer.valueOf(id);
+            }
+        }
+
+        // Best score first, then the shortest name as it has the least
+        // that didn't match, then by name
+        Arrays.sort(matched, 0, matchCount, new Comparator<Integer>()
+        {
+            public int compare(Integer id1, Integer id2)
+            {
+                int i1 = id1.intValue();
+                int i2 = id2.intValue();
+                if (scores[i1] != scores[i2])
+                {
+                    return scores[i1] > scores[i2] ? -1 : 1;
+                }
+                if (names[i1].length() != names[i2].length())
+                {
+                    return names[i1].length() - names[i2].length();
+                }
+                return names[i1].compareTo(names[i2]);
+            }
+        });
+        int[] matchingIds = new int[matchCount];
+        for (int i = 0; i < matchCount; i++)
+        {
+            matchingIds[i] = matched[i].intValue();
+        }
+        return matchingIds;
+    }
+
+    /**
+     * Score how well the characters of query appear in order in target.
+     * Each shortest stretch of target that query matches is scored and the
+     * best one counts. Both must already be in lower case.
+     * @return the score, higher being better, or NO_MATCH
+     */
+    static int score(char[] query, char[] target)
+    {
+        if (query.length == 0)
+        {
+            return NO_MATCH;
+        }
+        int best = NO_MATCH;
+        int from = 0;
+        while (target.length - from >= query.length)
+        {
+            // Find the first place from from that the whole of query has
+            // been matched by
+            int matched = 0;
+            int end = -1;
+            for (int i = from; i < target.length; i++)
+            {
+                if (target[i] == query[matched] && ++matched == query.length)
+                {
+                    end = i;
+                    break;
+                }
+            }
+            if (end == -1)
+            {
+                break;
+            }
+            // Work back from there to the last place it can start
+            int start = end;
+            matched = query.length - 1;
+            for (int i = end; i >= from; i--)
+            {
+                if (target[i] == query[matched] && --matched < 0)
+                {
+                    start = i;
+                    break;
+                }
+            }
+            best = Math.max(best, scoreMatch(query, target, start, end));
+            from = start + 1;
+        }
+        return best;
+    }
+
+    /**
+     * Score query matching the characters of target from start to end
+     */
+    private static int scoreMatch(char[] query, char[] target, int start, int end)
+    {
+        int score = 0;
+        int matched = 0;
+        boolean consecutive = false;
+        boolean inGap = false;
+        for (int i = start; i <= end; i++)
+        {
+            if (matched < query.length && target[i] == query[matched])
+            {
+                score += MATCH;
+                if (consecutive)
+                {
+                    score += CONSECUTIVE;
+                }
+                if (i == 0)
+                {
+                    score += FIELD_START + WORD_START;
+                }
+                else if (!Character.isLetterOrDigit(target[i - 1]))
+                {
+                    score += WORD_START;
+                }
+                matched++;
+                consecutive = true;
+                inGap = false;
+            }
+            else
+            {
+                score -= inGap ? GAP_EXTENSION : GAP_START;
+                consecutive = false;
+                inGap = true;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * @return true if the characters of part all appear in text in the same
+     * order
+     */
+    private static boolean isSubsequence(String part, String text)
+    {
+        int matched = 0;
+        for (int i = 0; i < text.length() && matched < part.length(); i++)
+        {
+            if (text.charAt(i) == part.charAt(matched))
+            {
+                matched++;
+            }
+        }
+        return matched == part.length();
+    }
+
+    /**
+     * @return a bit for each letter and digit in chars, and one shared by
+     * each group of other characters. A field can't match a query with a
+     * bit the field doesn't have.
+     */
+    private static long charMask(char[] chars)
+    {
+        long mask = 0;
+        for (int i = 0; i < chars.length; i++)
+        {
+            char c = chars[i];
+            if (c >= 'a' && c <= 'z')
+            {
+                mask |= 1L << (c - 'a');
+            }
+            else if (c >= '0' && c <= '9')
+            {
+                mask |= 1L << (26 + c - '0');
+            }
+            else
+            {
+                mask |= 1L << (36 + c % 28);
+            }
+        }
+        return mask;
+    }
+
+}
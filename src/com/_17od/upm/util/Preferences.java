@@ -36,6 +36,12 @@ import org.slf4j.LoggerFactory;
 public class Preferences
 {
     public static final String DB_TO_LOAD_ON_STARTUP= "DBToLoadOnStartup";
+    // How long, in milliseconds, deriving the key of a new database should take
+    public static final String KEY_DERIVATION_TIME = "keyDerivationTime";
+    // How the database is compressed: store, deflate or lz
+    public static final String COMPRESSION = "compression";
+    // The deflate level, 0-9
+    public static final String COMPRESSION_LEVEL = "compressionLevel";
 
     private static Logger log = LoggerFactory.getLogger(Preferences.class);
     private static final String PREF_FILE = "upm.properties";
@@ -20,6 +20,7 @@
  */
 package com._17od.upm.util;
 
+import java.text.Collator;
 import java.text.MessageFormat;
 import java.util.Locale;
 import java.util.ResourceBundle;
@@ -31,6 +32,7 @@ public class Translator
     public static Locale[] SUPPORTED_LOCALES = {new Locale("cs"), Locale.ENGLISH, Locale.FRENCH, Locale.GERMAN, Locale.ITALIAN, new Locale("es")};
 
     private static ResourceBundle resourceBundle;
+    private static Locale locale;
     private static MessageFormat formatter;
 
 
@@ -60,6 +62,20 @@ public class Translator
     }
 
 
+    /**
+     * @return a Collator for sorting in the current language, or the
+     * default locale's if no language has been loaded yet
+     */
+    public static Collator getCollator()
+    {
+        if (locale == null)
+        {
+            return Collator.getInstance();
+        }
+        return Collator.getInstance(locale);
+    }
+
+
     public static void initialise()
     {
         Locale locale = Locale.ENGLISH;
@@ -75,6 +91,7 @@ public class Translator
     public static void loadBundle(Locale locale)
     {
         resourceBundle = ResourceBundle.getBundle("upm", locale);
+        Translator.locale = locale;
         formatter = new MessageFormat("");
         formatter.setLocale(locale);
     }
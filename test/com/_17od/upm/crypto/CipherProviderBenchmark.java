@@ -0,0 +1,97 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+/**
+ * Times the AES providers on the sizes EncryptionService encrypts, from a
+ * single account record up to a block of records, and how often
+ * CipherProvider.chooseFastest() picks each of them. It's run by hand with
+ * <pre>
+ * java com._17od.upm.crypto.CipherProviderBenchmark [choices]
+ * </pre>
+ * Each choice is made in a new CipherProvider[] the same way the first
+ * EncryptionService makes it, but later choices are made with the code
+ * already compiled so they show how much the timings vary rather than
+ * what a cold start picks.
+ */
+public class CipherProviderBenchmark {
+
+    private static final int[] LENGTHS = new int[] {256, 4 * 1024, 64 * 1024, 1024 * 1024};
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int choices = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        CipherProvider[] providers = new CipherProvider[] {new JCECipherProvider(), new BouncyCastleCipherProvider()};
+
+        long start = System.nanoTime();
+        CipherProvider first = CipherProvider.chooseFastest(providers);
+        System.out.println("First choice: " + first.getName() + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+        int[] chosen = new int[providers.length];
+        for (int i = 1; i < choices; i++) {
+            CipherProvider provider = CipherProvider.chooseFastest(providers);
+            for (int p = 0; p < providers.length; p++) {
+                if (provider == providers[p]) {
+                    chosen[p]++;
+                }
+            }
+        }
+        for (int p = 0; p < providers.length; p++) {
+            System.out.println(providers[p].getName() + " chosen " + chosen[p] + " of " + (choices - 1) + " later times");
+        }
+
+        // The first run warms the code up
+        for (int run = 0; run <= RUNS; run++) {
+            for (int l = 0; l < LENGTHS.length; l++) {
+                StringBuilder line = new StringBuilder(LENGTHS[l] + " bytes:");
+                for (int p = 0; p < providers.length; p++) {
+                    long time = time(providers[p], LENGTHS[l]);
+                    line.append(" " + providers[p].getName() + " " + LENGTHS[l] * 1000L / Math.max(time, 1) + "MB/s");
+                }
+                if (run > 0) {
+                    System.out.println(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the nanoseconds taken to encrypt length bytes with a new
+     * cipher, the way each record gets one
+     */
+    private static long time(CipherProvider provider, int length) throws CryptoException {
+        byte[] data = new byte[length];
+        byte[] out = null;
+        int repeats = Math.max(1, 1024 * 1024 / length);
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            AESCipher cipher = provider.newCipher(true, new byte[32], new byte[AESCipher.BLOCK_SIZE]);
+            if (out == null) {
+                out = new byte[cipher.getOutputSize(length)];
+            }
+            int outLength = cipher.processBytes(data, 0, length, out, 0);
+            cipher.doFinal(out, outLength);
+        }
+        return (System.nanoTime() - start) / repeats;
+    }
+
+}
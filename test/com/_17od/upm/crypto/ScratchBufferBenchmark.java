@@ -0,0 +1,121 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares encrypting and decrypting through the byte[] methods of
+ * EncryptionService with the ByteBuffer methods and a ScratchBuffer, for a
+ * single account record, a block of records and a whole old style
+ * database. It's run by hand with
+ * <pre>
+ * java com._17od.upm.crypto.ScratchBufferBenchmark
+ * </pre>
+ * and prints the time and the bytes allocated for each round trip. The
+ * allocations are counted on a HotSpot JVM, elsewhere they're left out.
+ */
+public class ScratchBufferBenchmark {
+
+    private static final int[] LENGTHS = new int[] {256, 16 * 1024, 1024 * 1024};
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        EncryptionService encryptionService = new EncryptionService("benchmark".toCharArray(), KeyDerivation.pbkdf2(1000));
+        ScratchBuffer scratch = new ScratchBuffer();
+
+        // The first run warms the code up
+        for (int run = 0; run <= RUNS; run++) {
+            for (int l = 0; l < LENGTHS.length; l++) {
+                int length = LENGTHS[l];
+                int repeats = Math.max(1, 16 * 1024 * 1024 / length);
+                byte[] plainText = new byte[length];
+                int encryptedLength = EncryptionService.getEncryptedLengthWithIV(length);
+                ByteBuffer[] heap = new ByteBuffer[] {ByteBuffer.wrap(plainText), ByteBuffer.allocate(encryptedLength), ByteBuffer.allocate(encryptedLength)};
+                ByteBuffer[] direct = new ByteBuffer[] {ByteBuffer.allocateDirect(length), ByteBuffer.allocateDirect(encryptedLength), ByteBuffer.allocateDirect(encryptedLength)};
+
+                long[] arrays = timeArrays(encryptionService, plainText, repeats);
+                long[] heapBuffers = timeBuffers(encryptionService, heap, scratch, repeats);
+                long[] directBuffers = timeBuffers(encryptionService, direct, scratch, repeats);
+                if (run > 0) {
+                    System.out.println(length + " bytes: byte[] " + format(arrays) + ", heap ByteBuffer " + format(heapBuffers)
+                            + ", direct ByteBuffer " + format(directBuffers));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the nanoseconds and bytes allocated per round trip through
+     * encryptWithRandomIV(byte[]) and decryptWithIV(byte[])
+     */
+    private static long[] timeArrays(EncryptionService encryptionService, byte[] plainText, int repeats) throws CryptoException {
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            encryptionService.decryptWithIV(encryptionService.encryptWithRandomIV(plainText));
+        }
+        long time = System.nanoTime() - start;
+        return new long[] {time / repeats, (getAllocatedBytes() - allocated) / repeats};
+    }
+
+    /**
+     * @param buffers the plain text, the buffer to encrypt it into and the
+     * buffer to decrypt that into
+     * @return the nanoseconds and bytes allocated per round trip through
+     * the ByteBuffer methods
+     */
+    private static long[] timeBuffers(EncryptionService encryptionService, ByteBuffer[] buffers, ScratchBuffer scratch, int repeats) throws CryptoException {
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) {
+            buffers[0].clear();
+            buffers[1].clear();
+            buffers[2].clear();
+            encryptionService.encryptWithRandomIV(buffers[0], buffers[1], scratch);
+            buffers[1].flip();
+            encryptionService.decryptWithIV(buffers[1], buffers[2], scratch);
+        }
+        long time = System.nanoTime() - start;
+        return new long[] {time / repeats, (getAllocatedBytes() - allocated) / repeats};
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or 0 if the JVM
+     * doesn't count them
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static String format(long[] timeAndAllocated) {
+        return timeAndAllocated[0] + "ns " + timeAndAllocated[1] + " bytes allocated";
+    }
+
+}
@@ -22,6 +22,11 @@
  */
 package com._17od.upm.crypto;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import junit.framework.TestCase;
 
@@ -38,6 +43,109 @@ public class TestEncryptionService extends TestCase {
     }
 
     
+    public void testDecryptDirectBuffer() throws CryptoException {
+        char[] password = "test password".toCharArray();
+        EncryptionService encryptionService = new EncryptionService(password);
+        byte[] cleartext = new byte[100000];
+        for (int i = 0; i < cleartext.length; i++) {
+            cleartext[i] = (byte) i;
+        }
+        byte[] cipherText = encryptionService.encryptWithRandomIV(cleartext);
+
+        //A direct buffer isn't backed by an array, the same as a mapped file
+        ByteBuffer buffer = ByteBuffer.allocateDirect(cipherText.length + 10);
+        buffer.position(10);
+        buffer.put(cipherText);
+        buffer.position(10);
+        assertTrue("Decrypted buffer is different to original cleartext", Arrays.equals(cleartext, encryptionService.decryptWithIV(buffer)));
+    }
+
+
+    public void testByteBuffers() throws CryptoException {
+        char[] password = "test password".toCharArray();
+        EncryptionService encryptionService = new EncryptionService(password);
+        ScratchBuffer scratch = new ScratchBuffer(ScratchBuffer.DEFAULT_SIZE);
+
+        for (int length = 0; length < 100000; length = length * 3 + 1) {
+            byte[] cleartext = new byte[length];
+            for (int i = 0; i < cleartext.length; i++) {
+                cleartext[i] = (byte) i;
+            }
+            int encryptedLength = EncryptionService.getEncryptedLengthWithIV(length);
+
+            //Heap buffers
+            ByteBuffer heap = ByteBuffer.allocate(encryptedLength);
+            assertEquals(encryptedLength, encryptionService.encryptWithRandomIV(ByteBuffer.wrap(cleartext), heap, scratch));
+            assertTrue(Arrays.equals(cleartext, encryptionService.decryptWithIV(heap.array())));
+            heap.flip();
+            ByteBuffer decrypted = ByteBuffer.allocate(encryptedLength);
+            assertEquals(length, encryptionService.decryptWithIV(heap, decrypted, scratch));
+            assertTrue(Arrays.equals(cleartext, Arrays.copyOf(decrypted.array(), length)));
+
+            //Direct buffers go through the scratch buffer
+            ByteBuffer direct = ByteBuffer.allocateDirect(encryptedLength);
+            assertEquals(encryptedLength, encryptionService.encryptWithRandomIV(ByteBuffer.wrap(cleartext), direct, scratch));
+            direct.flip();
+            ByteBuffer directDecrypted = ByteBuffer.allocateDirect(encryptedLength);
+            assertEquals(length, encryptionService.decryptWithIV(direct, directDecrypted, scratch));
+            directDecrypted.flip();
+            byte[] cleartext2 = new byte[directDecrypted.remaining()];
+            directDecrypted.get(cleartext2);
+            assertTrue("Direct buffers differ for length " + length, Arrays.equals(cleartext, cleartext2));
+
+            //What one API encrypts the other decrypts
+            direct.rewind();
+            byte[] ivAndCipherText = new byte[direct.remaining()];
+            direct.get(ivAndCipherText);
+            assertTrue(Arrays.equals(cleartext, encryptionService.decryptWithIV(ivAndCipherText)));
+        }
+    }
+
+
+    public void testCipherProvidersMatch() throws CryptoException, IOException {
+        char[] password = "test password".toCharArray();
+        byte[] salt = new EncryptionService(password).getSalt();
+        EncryptionService bouncyCastle = new EncryptionService(password, salt, new BouncyCastleCipherProvider());
+        EncryptionService jce = new EncryptionService(password, salt, new JCECipherProvider());
+
+        for (int length = 0; length < 100000; length = length * 3 + 1) {
+            byte[] cleartext = new byte[length];
+            for (int i = 0; i < cleartext.length; i++) {
+                cleartext[i] = (byte) i;
+            }
+
+            //The same key and IV give the same ciphertext
+            byte[] cipherText = bouncyCastle.encrypt(cleartext);
+            assertTrue("Ciphertext differs for length " + length, Arrays.equals(cipherText, jce.encrypt(cleartext)));
+            assertTrue(Arrays.equals(cleartext, jce.decrypt(cipherText)));
+
+            //Either can decrypt what the other encrypted with a random IV
+            assertTrue(Arrays.equals(cleartext, bouncyCastle.decryptWithIV(jce.encryptWithRandomIV(cleartext))));
+            assertTrue(Arrays.equals(cleartext, jce.decryptWithIV(bouncyCastle.encryptWithRandomIV(cleartext))));
+        }
+    }
+
+
+    public void testDecryptStream() throws CryptoException, IOException {
+        char[] password = "test password".toCharArray();
+        EncryptionService encryptionService = new EncryptionService(password);
+        byte[] cleartext = new byte[100000];
+        for (int i = 0; i < cleartext.length; i++) {
+            cleartext[i] = (byte) i;
+        }
+        byte[] cipherText = encryptionService.encrypt(cleartext);
+
+        InputStream is = encryptionService.decrypt(new ByteArrayInputStream(cipherText));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while ((len = is.read(buf)) != -1) {
+            os.write(buf, 0, len);
+        }
+        assertTrue("Decrypted stream is different to original cleartext", Arrays.equals(cleartext, os.toByteArray()));
+    }
+
+    
     public void testChangePassword() throws CryptoException {
 
         char[] password = "test password".toCharArray();
@@ -58,7 +166,96 @@ public class TestEncryptionService extends TestCase {
         }
     }
 
-    
+
+
+    public void testChooseFastestSkipsUnavailableProviders() {
+        CipherProvider unavailable = new CipherProvider() {
+            String getName() {
+                return "Unavailable";
+            }
+
+            AESCipher newCipher(boolean forEncryption, byte[] key, byte[] iv) {
+                throw new IllegalStateException("AES isn't supported");
+            }
+        };
+        CipherProvider jce = new JCECipherProvider();
+        assertSame(jce, CipherProvider.chooseFastest(new CipherProvider[] {unavailable, jce}));
+        try {
+            CipherProvider.chooseFastest(new CipherProvider[] {unavailable});
+            fail("Should have got an IllegalStateException");
+        } catch (IllegalStateException e) {
+            //should get here
+        }
+    }
+
+
+    public void testWrappedKey() throws CryptoException, InvalidPasswordException {
+        char[] password = "test password".toCharArray();
+        EncryptionService encryptionService = new EncryptionService(password, KeyDerivation.pbkdf2(1000));
+        byte[] cipherText = encryptionService.encryptWithRandomIV("samplestring".getBytes());
+        byte[] wrappedKey = encryptionService.getWrappedKey();
+
+        //The data key comes out of the wrapped key with the right password
+        EncryptionService opened = new EncryptionService(password, encryptionService.getSalt(), KeyDerivation.pbkdf2(1000));
+        opened.unwrapKey(wrappedKey);
+        assertEquals("samplestring", new String(opened.decryptWithIV(cipherText)));
+
+        //Changing the password only changes the wrapped key
+        char[] password2 = "test password2".toCharArray();
+        encryptionService.changePassword(password2);
+        assertFalse(Arrays.equals(wrappedKey, encryptionService.getWrappedKey()));
+        assertEquals("samplestring", new String(encryptionService.decryptWithIV(cipherText)));
+        opened = new EncryptionService(password2, encryptionService.getSalt(), KeyDerivation.pbkdf2(1000));
+        opened.unwrapKey(encryptionService.getWrappedKey());
+        assertEquals("samplestring", new String(opened.decryptWithIV(cipherText)));
+
+        try {
+            new EncryptionService(password, encryptionService.getSalt(), KeyDerivation.pbkdf2(1000)).unwrapKey(encryptionService.getWrappedKey());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            //should get here
+        }
+    }
+
+
+    public void testVerifyPassword() throws CryptoException {
+        char[] password = "test password".toCharArray();
+        EncryptionService encryptionService = new EncryptionService(password, KeyDerivation.pbkdf2(1000));
+        assertTrue(encryptionService.verifyPassword(password));
+        assertFalse(encryptionService.verifyPassword("test passwore".toCharArray()));
+        assertFalse(encryptionService.verifyPassword(new char[0]));
+
+        char[] password2 = "test password2".toCharArray();
+        encryptionService.changePassword(password2);
+        assertTrue(encryptionService.verifyPassword(password2));
+        assertFalse(encryptionService.verifyPassword(password));
+
+        //Databases without a wrapped key
+        EncryptionService legacy = new EncryptionService(password, encryptionService.getSalt());
+        assertTrue(legacy.verifyPassword(password));
+        assertFalse(legacy.verifyPassword(password2));
+    }
+
+
+    public void testChangePasswordUpgradesLegacyKeyDerivation() throws CryptoException, InvalidPasswordException {
+        char[] password = "test password".toCharArray();
+        EncryptionService legacy = new EncryptionService(password, new EncryptionService(password, KeyDerivation.pbkdf2(1000)).getSalt());
+        assertNull(legacy.getWrappedKey());
+
+        char[] password2 = "test password2".toCharArray();
+        legacy.changePassword(password2, KeyDerivation.pbkdf2(2000));
+        assertEquals(KeyDerivation.pbkdf2(2000), legacy.getKeyDerivation());
+        byte[] cipherText = legacy.encryptWithRandomIV("samplestring".getBytes());
+        EncryptionService opened = new EncryptionService(password2, legacy.getSalt(), KeyDerivation.pbkdf2(2000));
+        opened.unwrapKey(legacy.getWrappedKey());
+        assertEquals("samplestring", new String(opened.decryptWithIV(cipherText)));
+
+        //Keys that are already wrapped keep their key derivation
+        legacy.changePassword(password, KeyDerivation.pbkdf2(3000));
+        assertEquals(KeyDerivation.pbkdf2(2000), legacy.getKeyDerivation());
+    }
+
+
     public void testSaltIsRandom() throws CryptoException, InterruptedException {
 
         char[] password = "test password".toCharArray();
@@ -0,0 +1,163 @@
+/*
+ * $Id$
+ *
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.crypto;
+
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+
+import junit.framework.TestCase;
+
+
+public class TestKeyDerivation extends TestCase {
+
+    public void testPbkdf2() {
+        //Test vectors worked out with another implementation
+        assertEquals("867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce",
+                toHex(Pbkdf2.generate(new SHA512Digest(), "password".getBytes(), "salt".getBytes(), 1, 64)));
+        assertEquals("afe6c5530785b6cc6b1c6453384731bd5ee432ee549fd42fb6695779ad8a1c5bf59de69c48f774efc4007d5298f9033c0241d5ab69305e7b64eceeb8d834cfec",
+                toHex(Pbkdf2.generate(new SHA512Digest(), "password".getBytes(), "salt".getBytes(), 1000, 64)));
+    }
+
+
+    public void testPbkdf2Sha1() {
+        //Test vectors from RFC 6070, apart from the one with 16777216
+        //iterations which takes too long
+        assertEquals("0c60c80f961f0e71f3a9b524af6012062fe037a6",
+                toHex(Pbkdf2.generate(new SHA1Digest(), "password".getBytes(), "salt".getBytes(), 1, 20)));
+        assertEquals("ea6c014dc72d6f8ccd1ed92ace1d41f0d8de8957",
+                toHex(Pbkdf2.generate(new SHA1Digest(), "password".getBytes(), "salt".getBytes(), 2, 20)));
+        assertEquals("4b007901b765489abead49d926f721d065a429c1",
+                toHex(Pbkdf2.generate(new SHA1Digest(), "password".getBytes(), "salt".getBytes(), 4096, 20)));
+        assertEquals("3d2eec4fe41c849b80c8d83662c0e44a8b291a964cf2f07038",
+                toHex(Pbkdf2.generate(new SHA1Digest(), "passwordPASSWORDpassword".getBytes(), "saltSALTsaltSALTsaltSALTsaltSALTsalt".getBytes(), 4096, 25)));
+        assertEquals("56fa6aa75548099dcc37d7f03425e0c3",
+                toHex(Pbkdf2.generate(new SHA1Digest(), "pass\0word".getBytes(), "sa\0lt".getBytes(), 4096, 16)));
+    }
+
+
+    public void testPbkdf2Sha256() {
+        //Test vectors from RFC 7914, scrypt uses PBKDF2-HMAC-SHA256 with one
+        //iteration
+        assertEquals("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783",
+                toHex(Pbkdf2.generate(new SHA256Digest(), "passwd".getBytes(), "salt".getBytes(), 1, 64)));
+        assertEquals("4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d",
+                toHex(Pbkdf2.generate(new SHA256Digest(), "Password".getBytes(), "NaCl".getBytes(), 80000, 64)));
+    }
+
+
+    public void testScrypt() {
+        //Test vectors from RFC 7914, the second runs its 16 lanes in parallel
+        assertEquals("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906",
+                toHex(Scrypt.generate(new byte[0], new byte[0], 16, 1, 1, 64)));
+        assertEquals("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640",
+                toHex(Scrypt.generate("password".getBytes(), "NaCl".getBytes(), 1024, 8, 16, 64)));
+        assertEquals("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887",
+                toHex(Scrypt.generate("pleaseletmein".getBytes(), "SodiumChloride".getBytes(), 16384, 8, 1, 64)));
+    }
+
+
+    public void testDeriveKey() {
+        //The key and IV as used by new databases, worked out with another
+        //implementation. The password is UTF-8 encoded.
+        char[] password = "p\u00e4ssw\u00f6rd".toCharArray();
+        assertEquals("2d60c364853a8ce4ccd70818f0f34c06f7a7340a49ca5407a432df71be401c3d0fa255df682ad598b719ee6afe3461f4",
+                toHex(KeyDerivation.DEFAULT.deriveKey(password, "NaCl".getBytes())));
+        assertEquals("c41d948e7dcb61b401ad6ebc914d92fb83768a35709da20960422c4e093b6d85330a40e49f2c2cfc0128d090cc8cb558",
+                toHex(KeyDerivation.pbkdf2(10000).deriveKey(password, "NaCl".getBytes())));
+    }
+
+
+    public void testDescriptor() {
+        KeyDerivation[] kdfs = new KeyDerivation[] {
+            KeyDerivation.LEGACY, KeyDerivation.DEFAULT, KeyDerivation.pbkdf2(200000), KeyDerivation.scrypt(15, 8, 4)
+        };
+        for (int i = 0; i < kdfs.length; i++) {
+            assertEquals(kdfs[i], KeyDerivation.fromBytes(kdfs[i].toBytes()));
+        }
+        assertNull(KeyDerivation.fromBytes(new byte[] {1, 99, 0, 0, 0, 1}));
+        assertNull(KeyDerivation.fromBytes(new byte[] {2}));
+        assertNull(KeyDerivation.fromBytes(new byte[0]));
+    }
+
+
+    public void testDescriptorLimits() {
+        //Descriptors that would take too long or too much memory to use
+        //are rejected
+        assertNull(KeyDerivation.fromBytes(KeyDerivation.scrypt(21, 1, 1).toBytes()));
+        assertNull(KeyDerivation.fromBytes(KeyDerivation.scrypt(10, 8, 5).toBytes()));
+        assertNull(KeyDerivation.fromBytes(KeyDerivation.scrypt(18, 8, 2).toBytes()));
+        assertNull(KeyDerivation.fromBytes(KeyDerivation.scrypt(10, 4096, 1).toBytes()));
+        assertNull(KeyDerivation.fromBytes(KeyDerivation.pbkdf2(Integer.MAX_VALUE).toBytes()));
+        assertNull(KeyDerivation.fromBytes(new byte[] {1, 0, 0x7f, 0, 0, 0}));
+        assertNull(KeyDerivation.fromBytes(new byte[] {1, 0, 0, 0, 0, 0}));
+
+        //The biggest calibrate() can choose are accepted
+        KeyDerivation scrypt = KeyDerivation.scrypt(18, 8, 1);
+        assertEquals(scrypt, KeyDerivation.fromBytes(scrypt.toBytes()));
+        KeyDerivation pbkdf2 = KeyDerivation.pbkdf2(10000000);
+        assertEquals(pbkdf2, KeyDerivation.fromBytes(pbkdf2.toBytes()));
+    }
+
+
+    public void testKeysDiffer() throws CryptoException {
+        char[] password = "test password".toCharArray();
+        EncryptionService legacy = new EncryptionService(password, KeyDerivation.LEGACY);
+        byte[] salt = legacy.getSalt();
+        EncryptionService pbkdf2 = new EncryptionService(password, salt, KeyDerivation.pbkdf2(1000));
+        EncryptionService scrypt = new EncryptionService(password, salt, KeyDerivation.scrypt(10, 8, 2));
+
+        //The legacy derivation is the one used when none is given
+        assertTrue(Arrays.equals(legacy.getKeyCheckValue(), new EncryptionService(password, salt).getKeyCheckValue()));
+        assertFalse(Arrays.equals(legacy.getKeyCheckValue(), pbkdf2.getKeyCheckValue()));
+        assertFalse(Arrays.equals(legacy.getKeyCheckValue(), scrypt.getKeyCheckValue()));
+        assertFalse(Arrays.equals(pbkdf2.getKeyCheckValue(), scrypt.getKeyCheckValue()));
+        assertTrue(Arrays.equals(scrypt.getKeyCheckValue(), new EncryptionService(password, salt, KeyDerivation.scrypt(10, 8, 2)).getKeyCheckValue()));
+    }
+
+
+    public void testCalibrate() {
+        KeyDerivation scrypt = KeyDerivation.calibrate(KeyDerivation.SCRYPT, 100);
+        assertEquals(KeyDerivation.SCRYPT, scrypt.getAlgorithm());
+        KeyDerivation pbkdf2 = KeyDerivation.calibrate(KeyDerivation.PBKDF2_SHA512, 100);
+        assertEquals(KeyDerivation.PBKDF2_SHA512, pbkdf2.getAlgorithm());
+        try {
+            KeyDerivation.calibrate(KeyDerivation.PKCS12, 100);
+            fail("Should have got an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            //should get here
+        }
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        StringBuffer hex = new StringBuffer();
+        for (int i = 0; i < bytes.length; i++) {
+            hex.append(Integer.toHexString((bytes[i] & 0xff) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import com._17od.upm.crypto.EncryptionService;
+import com._17od.upm.crypto.KeyDerivation;
+
+/**
+ * Compares the record format with the Java serialization version 3
+ * databases used. It's run by hand with
+ * <pre>
+ * java com._17od.upm.database.RecordFormatBenchmark [accounts]
+ * </pre>
+ * and prints how fast the accounts are written and read back in each
+ * format and how big they are, then how long it takes to open a version 3
+ * file and a current one and read every account.
+ */
+public class RecordFormatBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        ArrayList<AccountInformation> accounts = new ArrayList<AccountInformation>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(new AccountInformation("Account " + i, ("user" + i).getBytes(), ("password" + i).toCharArray(),
+                    ("http://www.example" + i + ".com").getBytes(), ("notes for account " + i).getBytes()));
+        }
+        File version3File = File.createTempFile("upm", ".db");
+        version3File.deleteOnExit();
+        File currentFile = File.createTempFile("upm", ".db");
+        currentFile.deleteOnExit();
+        new File(currentFile.getPath() + ".bak").deleteOnExit();
+        writeVersion3(accounts, version3File);
+        currentFile.delete();
+        PasswordDatabase database = new PasswordDatabase(currentFile);
+        for (int i = 0; i < count; i++) {
+            database.addAccount(accounts.get(i));
+        }
+        new PasswordDatabasePersistence(PASSWORD, KeyDerivation.pbkdf2(1000)).save(database);
+
+        // The first run warms the code up
+        for (int run = 0; run <= RUNS; run++) {
+            long start = System.nanoTime();
+            byte[] serialized = serialize(accounts);
+            long serializeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            deserialize(serialized, count);
+            long deserializeTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            byte[] records = writeRecords(accounts);
+            long writeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            readRecords(records, count);
+            long readTime = System.nanoTime() - start;
+
+            long version3Open = timeOpen(version3File, count);
+            long currentOpen = timeOpen(currentFile, count);
+            if (run > 0) {
+                System.out.println(count + " accounts: serialization " + serialized.length / 1024 + "KB written in "
+                        + serializeTime / 1000000 + "ms and read in " + deserializeTime / 1000000 + "ms, records "
+                        + records.length / 1024 + "KB written in " + writeTime / 1000000 + "ms and read in "
+                        + readTime / 1000000 + "ms; opening and reading every account takes "
+                        + version3Open / 1000000 + "ms for version 3 and " + currentOpen / 1000000 + "ms now");
+            }
+        }
+    }
+
+    private static byte[] serialize(ArrayList<AccountInformation> accounts) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        for (int i = 0; i < accounts.size(); i++) {
+            out.writeObject(accounts.get(i));
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the accounts back the way version 3 databases were read, until
+     * the end of the stream
+     */
+    private static void deserialize(byte[] serialized, int count) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        int read = 0;
+        try {
+            while (true) {
+                in.readObject();
+                read++;
+            }
+        } catch (EOFException e) {
+            // the end of the accounts
+        }
+        check(read, count);
+    }
+
+    private static byte[] writeRecords(ArrayList<AccountInformation> accounts) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(accounts.size());
+        for (int i = 0; i < accounts.size(); i++) {
+            AccountRecords.write(out, accounts.get(i));
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void readRecords(byte[] records, int count) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(records)));
+        int read = in.readInt();
+        for (int i = 0; i < read; i++) {
+            AccountRecords.read(in);
+        }
+        check(read, count);
+    }
+
+    /**
+     * @return the nanoseconds taken to open file and read all its accounts
+     */
+    private static long timeOpen(File file, int count) throws Exception {
+        long start = System.nanoTime();
+        PasswordDatabase database = new PasswordDatabasePersistence().load(file, PASSWORD);
+        check(database.getAccounts().size(), count);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Write a database the way UPM did before the record format
+     */
+    private static void writeVersion3(ArrayList<AccountInformation> accounts, File file) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+        for (int i = 0; i < accounts.size(); i++) {
+            out.writeObject(accounts.get(i));
+        }
+        out.close();
+        byte[] salt = new EncryptionService(PASSWORD, KeyDerivation.pbkdf2(1000)).getSalt();
+        EncryptionService encryptionService = new EncryptionService(PASSWORD, salt);
+        BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            fos.write(3);
+            fos.write(salt);
+            fos.write(encryptionService.encrypt(bytes.toByteArray()));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void check(int read, int count) {
+        if (read != count) {
+            throw new IllegalStateException("Read " + read + " accounts instead of " + count);
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com._17od.upm.crypto.EncryptionService;
+import com._17od.upm.crypto.KeyDerivation;
+
+/**
+ * Compares saving a whole database with writing it the way UPM used to,
+ * serialized, compressed and encrypted in memory and then written out in
+ * one go. It's run by hand with
+ * <pre>
+ * java com._17od.upm.database.SaveBenchmark [accounts]...
+ * </pre>
+ * and prints the time each takes, the bytes allocated on every thread and
+ * how far the heap rose above what was in use before. The allocations are
+ * counted on a HotSpot JVM, elsewhere they're left out. The heap figure
+ * adds up the peak of each heap pool so it's only a rough guide.
+ */
+public class SaveBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = new int[] {10000, 100000};
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        File databaseFile = File.createTempFile("upm", ".db");
+        databaseFile.deleteOnExit();
+        new File(databaseFile.getPath() + ".bak").deleteOnExit();
+        for (int c = 0; c < counts.length; c++) {
+            ArrayList<AccountInformation> accounts = new ArrayList<AccountInformation>(counts[c]);
+            for (int i = 0; i < counts[c]; i++) {
+                accounts.add(new AccountInformation("Account " + i, ("user" + i).getBytes(), ("password" + i).toCharArray(),
+                        ("http://www.example" + i + ".com").getBytes(), ("notes for account " + i).getBytes()));
+            }
+            // The first run warms the code up
+            for (int run = 0; run <= RUNS; run++) {
+                long[] buffered = timeBuffered(accounts, databaseFile);
+                long[] streamed = timeSave(accounts, databaseFile);
+                if (run > 0) {
+                    System.out.println(counts[c] + " accounts: buffered " + format(buffered) + ", streamed " + format(streamed));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the nanoseconds, bytes allocated and heap growth for a save
+     * of a new database
+     */
+    private static long[] timeSave(ArrayList<AccountInformation> accounts, File databaseFile) throws Exception {
+        databaseFile.delete();
+        PasswordDatabase database = new PasswordDatabase(databaseFile);
+        for (int i = 0; i < accounts.size(); i++) {
+            database.addAccount(accounts.get(i));
+        }
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence(PASSWORD, KeyDerivation.pbkdf2(1000));
+        long[] start = start();
+        dbPers.save(database);
+        return finish(start);
+    }
+
+    /**
+     * @return the same as timeSave() for writing the accounts the way
+     * version 3 databases were written
+     */
+    private static long[] timeBuffered(ArrayList<AccountInformation> accounts, File databaseFile) throws Exception {
+        EncryptionService encryptionService = new EncryptionService(PASSWORD, new EncryptionService(PASSWORD, KeyDerivation.pbkdf2(1000)).getSalt());
+        long[] start = start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+        for (int i = 0; i < accounts.size(); i++) {
+            out.writeObject(accounts.get(i));
+        }
+        out.close();
+        byte[] encrypted = encryptionService.encrypt(bytes.toByteArray());
+        FileOutputStream fos = new FileOutputStream(databaseFile);
+        try {
+            fos.write(3);
+            fos.write(encryptionService.getSalt());
+            fos.write(encrypted);
+        } finally {
+            fos.close();
+        }
+        return finish(start);
+    }
+
+    /**
+     * @return the time, the bytes allocated so far and the heap in use now
+     */
+    private static long[] start() {
+        System.gc();
+        long used = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (int i = 0; i < pools.size(); i++) {
+            if (pools.get(i).getType() == MemoryType.HEAP) {
+                pools.get(i).resetPeakUsage();
+                used += pools.get(i).getUsage().getUsed();
+            }
+        }
+        return new long[] {System.nanoTime(), getAllocatedBytes(), used};
+    }
+
+    /**
+     * @return the time, bytes allocated and heap growth since start
+     */
+    private static long[] finish(long[] start) {
+        long time = System.nanoTime() - start[0];
+        long allocated = getAllocatedBytes() - start[1];
+        long peak = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (int i = 0; i < pools.size(); i++) {
+            if (pools.get(i).getType() == MemoryType.HEAP) {
+                peak += pools.get(i).getPeakUsage().getUsed();
+            }
+        }
+        return new long[] {time, allocated, peak - start[2]};
+    }
+
+    /**
+     * @return the bytes allocated so far by the threads that are still
+     * running, which include the pool that writes the blocks, or 0 if the
+     * JVM doesn't count them
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds());
+        long total = 0;
+        for (int i = 0; i < allocated.length; i++) {
+            total += Math.max(allocated[i], 0);
+        }
+        return total;
+    }
+
+    private static String format(long[] result) {
+        return result[0] / 1000000 + "ms, " + result[1] / 1024 + "KB allocated, heap up " + result[2] / 1024 + "KB";
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * $Id$
+ *
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.database;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+
+public class TestCodec extends TestCase {
+
+    private Codec[] codecs = new Codec[] {
+        Codec.getInstance(Codec.STORE, 0),
+        Codec.getInstance(Codec.DEFLATE, Deflater.DEFAULT_COMPRESSION),
+        Codec.getInstance(Codec.DEFLATE, Deflater.BEST_SPEED),
+        Codec.getInstance(Codec.DEFLATE, Deflater.BEST_COMPRESSION),
+        Codec.getInstance(Codec.LZ, 0)
+    };
+
+
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(1);
+        byte[] randomBytes = new byte[100000];
+        random.nextBytes(randomBytes);
+        byte[] repeated = new byte[100000];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) (i % 7);
+        }
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 2000; i++) {
+            text.append("Account ").append(i).append(" http://www.example.com/").append(random.nextInt(50));
+        }
+        byte[][] samples = new byte[][] {new byte[0], "abc".getBytes(), randomBytes, repeated, new byte[70000], text.toString().getBytes()};
+
+        for (int i = 0; i < codecs.length; i++) {
+            for (int j = 0; j < samples.length; j++) {
+                byte[] compressed = codecs[i].compress(samples[j]);
+                assertTrue("Codec " + codecs[i].getId() + " sample " + j, Arrays.equals(samples[j], codecs[i].decompress(compressed)));
+
+                //Only the given length of a reused buffer is decompressed
+                byte[] buffer = new byte[compressed.length + 50];
+                Arrays.fill(buffer, (byte) 0x5a);
+                System.arraycopy(compressed, 0, buffer, 0, compressed.length);
+                assertTrue("Codec " + codecs[i].getId() + " sample " + j + " in a buffer", Arrays.equals(samples[j], codecs[i].decompress(buffer, compressed.length)));
+            }
+        }
+    }
+
+
+    public void testLZCompresses() {
+        byte[] repeated = new byte[100000];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = (byte) (i % 7);
+        }
+        assertTrue(Codec.getInstance(Codec.LZ, 0).compress(repeated).length < repeated.length / 50);
+    }
+
+
+    public void testCorruptLZData() {
+        byte[] compressed = Codec.getInstance(Codec.LZ, 0).compress("abcabcabcabcabcabcabcabc".getBytes());
+        byte[] truncated = new byte[compressed.length - 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        try {
+            Codec.getInstance(Codec.LZ, 0).decompress(truncated);
+            fail("Should have got an IOException");
+        } catch (IOException e) {
+            //should get here
+        }
+    }
+
+
+    public void testUnknownCodec() {
+        assertNull(Codec.getInstance(99, 0));
+        assertNull(Codec.getInstance(Codec.DEFLATE, 10));
+    }
+
+}
@@ -22,13 +22,33 @@
  */
 package com._17od.upm.database;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
 
 import com._17od.upm.crypto.CryptoException;
+import com._17od.upm.crypto.EncryptionService;
 import com._17od.upm.crypto.InvalidPasswordException;
+import com._17od.upm.crypto.KeyDerivation;
 
 
 public class TestPasswordDatabase extends TestCase {
@@ -158,6 +178,869 @@ public class TestPasswordDatabase extends TestCase {
     }
 
 
+    public void testOpenWithWrongPassword() throws CryptoException, IOException, ProblemReadingDatabaseFile {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        PasswordDatabasePersistence pers = new PasswordDatabasePersistence(password);
+        pers.save(db);
+
+        try {
+            new PasswordDatabasePersistence().load(new File(databaseFileName), "wrong password".toCharArray());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            //should get here
+        }
+    }
+
+
+    public void testWrongPasswordIsRejectedBeforeDecrypting() throws CryptoException, IOException, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        new PasswordDatabasePersistence(password).save(db);
+
+        //Break the index length that follows the header
+        RandomAccessFile file = new RandomAccessFile(databaseFileName, "rw");
+        try {
+            file.seek(1 + EncryptionService.SALT_LENGTH);
+            int headerLength = file.readInt();
+            file.seek(1 + EncryptionService.SALT_LENGTH + 4 + headerLength);
+            file.writeInt(-1);
+        } finally {
+            file.close();
+        }
+
+        //The key check in the header is enough to reject the password
+        try {
+            new PasswordDatabasePersistence().load(new File(databaseFileName), "wrong password".toCharArray());
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            //should get here
+        } catch (ProblemReadingDatabaseFile e) {
+            fail("The password should have been checked before the index was read");
+        }
+
+        //With the right password the damage is reported as such
+        try {
+            new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+            fail("Should have got a ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            //should get here
+        }
+    }
+
+
+    public void testManyAccounts() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+
+        //Enough accounts to need several buffers when the file is read back in
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        for (int i = 0; i < 2000; i++) {
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    ("notes " + i).getBytes()));
+        }
+        PasswordDatabasePersistence pers = new PasswordDatabasePersistence(password);
+        pers.save(db);
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals(2000, db.getAccounts().size());
+        AccountInformation ai = db.getAccount("Account 1234");
+        assertEquals("userid 1234", new String(ai.getUserId()));
+        assertEquals("password 1234", new String(ai.getPassword()));
+        assertEquals("url 1234", new String(ai.getUrl()));
+        assertEquals("notes 1234", new String(ai.getNotes()));
+    }
+
+
+    public void testAccountsAreReadInBlocks() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        //Enough for the accounts to be split over several blocks
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        byte[] notes = new byte[1000];
+        for (int i = 0; i < 300; i++) {
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    notes));
+        }
+        new PasswordDatabasePersistence(password).save(db);
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        db.addAccount(new AccountInformation("Account 1",
+                "new userid".getBytes(),
+                "new password".toCharArray(),
+                "new url".getBytes(),
+                notes));
+
+        //Reading an account from the same block doesn't undo the change
+        assertEquals("password 2", new String(db.getAccount("Account 2").getPassword()));
+        assertEquals("new password", new String(db.getAccount("Account 1").getPassword()));
+
+        //Everything else is read in one go
+        assertEquals(300, db.getAccounts().size());
+        assertEquals("password 299", new String(db.getAccount("Account 299").getPassword()));
+        assertEquals("new password", new String(db.getAccount("Account 1").getPassword()));
+    }
+
+
+    public void testCompression() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        int[][] codecs = new int[][] {{Codec.STORE, 0}, {Codec.DEFLATE, 1}, {Codec.LZ, 0}};
+        for (int c = 0; c < codecs.length; c++) {
+            //Make sure the file doesn't exist
+            deleteFile(databaseFileName);
+            deleteFile(databaseFileName + ".journal");
+
+            PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+            for (int i = 0; i < 300; i++) {
+                db.addAccount(new AccountInformation("Account " + i,
+                        ("userid " + i).getBytes(),
+                        ("password " + i).toCharArray(),
+                        ("url " + i).getBytes(),
+                        new byte[1000]));
+            }
+            PasswordDatabasePersistence pers = new PasswordDatabasePersistence(password);
+            pers.setCompression(codecs[c][0], codecs[c][1]);
+            pers.save(db);
+
+            db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+            assertEquals(300, db.getAccounts().size());
+            assertEquals("password 123", new String(db.getAccount("Account 123").getPassword()));
+
+            //Asking for the compression the file already has doesn't rewrite it
+            pers = new PasswordDatabasePersistence();
+            db = pers.load(new File(databaseFileName), password);
+            pers.setCompression(codecs[c][0], codecs[c][1]);
+            assertFalse(pers.needsSaving(db));
+            pers.setCompression(codecs[(c + 1) % codecs.length][0], codecs[(c + 1) % codecs.length][1]);
+            assertTrue(pers.needsSaving(db));
+        }
+    }
+
+
+    public void testKeyDerivationIsRecorded() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        KeyDerivation[] kdfs = new KeyDerivation[] {KeyDerivation.LEGACY, KeyDerivation.pbkdf2(1000), KeyDerivation.scrypt(10, 8, 2)};
+        for (int i = 0; i < kdfs.length; i++) {
+            //Make sure the file doesn't exist
+            deleteFile(databaseFileName);
+            deleteFile(databaseFileName + ".journal");
+
+            PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+            db.addAccount(new AccountInformation("Hotmail", "userid".getBytes(), "password".toCharArray(), "url".getBytes(), "notes".getBytes()));
+            new PasswordDatabasePersistence(password, kdfs[i]).save(db);
+
+            PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+            db = dbPers.load(new File(databaseFileName), password);
+            assertEquals(kdfs[i], dbPers.getEncryptionService().getKeyDerivation());
+            assertEquals("password", new String(db.getAccount("Hotmail").getPassword()));
+        }
+    }
+
+
+    public void testOpenVersion3Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(3);
+    }
+
+
+    public void testOpenVersion4Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(4);
+    }
+
+
+    public void testOpenVersion5Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(5);
+    }
+
+
+    public void testOpenVersion6Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(6);
+    }
+
+
+    public void testOpenVersion7Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(7);
+    }
+
+
+    public void testOpenVersion8Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(8);
+    }
+
+
+    public void testOpenVersion9Fixture() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        checkFixture(9);
+    }
+
+
+    public void testOpenVersion3DB() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".bak");
+
+        //Write a database the way UPM did before the record format was introduced
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(os));
+        out.writeObject(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        out.close();
+        //Old databases were encrypted with the key derived from the password
+        byte[] salt = new byte[EncryptionService.SALT_LENGTH];
+        new Random().nextBytes(salt);
+        EncryptionService encryptionService = new EncryptionService(password, salt);
+        FileOutputStream fos = new FileOutputStream(databaseFileName);
+        fos.write(3);
+        fos.write(encryptionService.getSalt());
+        fos.write(encryptionService.encrypt(os.toByteArray()));
+        fos.close();
+
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+        PasswordDatabase db = dbPers.load(new File(databaseFileName), password);
+        AccountInformation ai = db.getAccount("Hotmail");
+        assertEquals("this is the userid", new String(ai.getUserId()));
+        assertEquals("this is the password", new String(ai.getPassword()));
+        assertEquals("this is the url", new String(ai.getUrl()));
+        assertEquals("this is the notes", new String(ai.getNotes()));
+
+        //The same file read through a mapping
+        PasswordDatabasePersistence mappedPers = new PasswordDatabasePersistence();
+        mappedPers.setMapThreshold(0);
+        assertEquals("this is the password", new String(mappedPers.load(new File(databaseFileName), password).getAccount("Hotmail").getPassword()));
+
+        //Saving it without changing anything leaves the file alone
+        byte[] version3File = readFile(databaseFileName);
+        dbPers.save(db);
+        assertTrue(Arrays.equals(version3File, readFile(databaseFileName)));
+        assertFalse(new File(databaseFileName + ".bak").exists());
+
+        //Saving a change upgrades the file to the current version
+        db.addAccount(new AccountInformation("Gmail", "".getBytes(), "gmail password".toCharArray(), "".getBytes(), "".getBytes()));
+        dbPers.save(db);
+        assertTrue(readFile(databaseFileName)[0] != 3);
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals("this is the password", new String(db.getAccount("Hotmail").getPassword()));
+        assertEquals("gmail password", new String(db.getAccount("Gmail").getPassword()));
+    }
+
+
+    public void testOpenMappedDB() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        for (int i = 0; i < 100; i++) {
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    ("notes " + i).getBytes()));
+        }
+        new PasswordDatabasePersistence(password).save(db);
+
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+        dbPers.setMapThreshold(0);
+        db = dbPers.load(new File(databaseFileName), password);
+        assertEquals(100, db.getAccountNames().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("password " + i, new String(db.getAccount("Account " + i).getPassword()));
+        }
+    }
+
+
+    public void testAccountsAreReadOnDemand() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        for (int i = 0; i < 100; i++) {
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    ("notes " + i).getBytes()));
+        }
+        PasswordDatabasePersistence pers = new PasswordDatabasePersistence(password);
+        pers.save(db);
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals(100, db.getAccountNames().size());
+        assertTrue(db.getAccountNames().contains("Account 42"));
+        assertEquals("password 42", new String(db.getAccount("Account 42").getPassword()));
+        assertNull(db.getAccount("No such account"));
+    }
+
+
+    public void testPeekAccountsRetriesWhenTheFileIsReplaced() throws CryptoException, IOException {
+        final AccountInformation hotmail = new AccountInformation("Hotmail", "userid".getBytes(), "password".toCharArray(), "url".getBytes(), "notes".getBytes());
+        final PasswordDatabase.AccountLoader newLoader = new PasswordDatabase.AccountLoader() {
+            public Map<String, AccountInformation> load(Collection<String> accountNames) {
+                return Collections.singletonMap("Hotmail", hotmail);
+            }
+        };
+        final PasswordDatabase[] db = new PasswordDatabase[1];
+        //The old file is replaced part way through reading it
+        db[0] = new PasswordDatabase(Collections.singleton("Hotmail"), new PasswordDatabase.AccountLoader() {
+            public Map<String, AccountInformation> load(Collection<String> accountNames) throws IOException {
+                db[0].setAccountLoader(newLoader);
+                throw new IOException("Corrupt account record");
+            }
+        }, new File(databaseFileName));
+        assertSame(hotmail, db[0].peekAccounts(Collections.singleton("Hotmail")).get("Hotmail"));
+
+        //A file that's still in place really is broken
+        PasswordDatabase broken = new PasswordDatabase(Collections.singleton("Hotmail"), new PasswordDatabase.AccountLoader() {
+            public Map<String, AccountInformation> load(Collection<String> accountNames) throws IOException {
+                throw new IOException("Corrupt account record");
+            }
+        }, new File(databaseFileName));
+        try {
+            broken.peekAccounts(Collections.singleton("Hotmail"));
+            fail("Should have got an IOException");
+        } catch (IOException e) {
+            //should get here
+        }
+    }
+
+
+    public void testMissingFields() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the files don't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        //A snapshot and then the journal both write missing fields as empty ones
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail", "userid".getBytes(), "password".toCharArray(), null, null));
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence(password);
+        dbPers.save(db);
+        db.addAccount(new AccountInformation("Gmail", null, "gmail password".toCharArray(), "url".getBytes(), null));
+        dbPers.save(db);
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        AccountInformation hotmail = db.getAccount("Hotmail");
+        assertEquals("password", new String(hotmail.getPassword()));
+        assertEquals(0, hotmail.getUrl().length);
+        assertEquals(0, hotmail.getNotes().length);
+        AccountInformation gmail = db.getAccount("Gmail");
+        assertEquals(0, gmail.getUserId().length);
+        assertEquals("url", new String(gmail.getUrl()));
+    }
+
+
+    public void testPeekAccountsDoesNotKeepThem() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        for (int i = 0; i < 100; i++) {
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    ("notes " + i).getBytes()));
+        }
+        new PasswordDatabasePersistence(password).save(db);
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        AccountInformation changed = new AccountInformation("Account 7", "new userid".getBytes(), "password".toCharArray(), "url".getBytes(), "notes".getBytes());
+        db.addAccount(changed);
+        db.deleteAccount("Account 8");
+
+        Map<String, AccountInformation> peeked = db.peekAccounts(Arrays.asList(new String[] {"Account 42", "Account 7", "Account 8"}));
+        assertEquals("userid 42", new String(peeked.get("Account 42").getUserId()));
+        assertSame(changed, peeked.get("Account 7"));
+        assertFalse(peeked.containsKey("Account 8"));
+
+        //The peeked account wasn't kept so it's read again
+        assertNotSame(peeked.get("Account 42"), db.getAccount("Account 42"));
+    }
+
+
+    public void testChangePassword() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        new PasswordDatabasePersistence(password).save(db);
+
+        //Change the password on a freshly opened database
+        char[] newPassword = "new password".toCharArray();
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+        db = dbPers.load(new File(databaseFileName), password);
+        dbPers.changePassword(db, newPassword);
+        dbPers.save(db);
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), newPassword);
+        assertEquals("this is the password", new String(db.getAccount("Hotmail").getPassword()));
+        try {
+            new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+            fail("Should have got an InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            //should get here
+        }
+    }
+
+
+    public void testChangePasswordOnlyRewritesHeader() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the files don't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+        deleteFile(databaseFileName + ".bak");
+
+        //Write the database twice so there's a backup, then put a change in the journal
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        for (int i = 0; i < 100; i++) {
+            db.addAccount(new AccountInformation("Account " + i, "userid".getBytes(), "password".toCharArray(), "url".getBytes(), new byte[1000]));
+        }
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence(password);
+        dbPers.save(db);
+        dbPers.setCompression(Codec.DEFLATE, 1);
+        dbPers.save(db);
+        db.addAccount(new AccountInformation("Hotmail", "userid".getBytes(), "hotmail password".toCharArray(), "url".getBytes(), "notes".getBytes()));
+        dbPers.save(db);
+        assertTrue(new File(databaseFileName + ".journal").exists());
+
+        byte[] before = readFile(databaseFileName);
+        byte[] journalBefore = readFile(databaseFileName + ".journal");
+        char[] newPassword = "new password".toCharArray();
+        dbPers.changePassword(db, newPassword);
+        dbPers.save(db);
+
+        //Only the header changed and the journal still belongs to the database
+        byte[] after = readFile(databaseFileName);
+        assertEquals(before.length, after.length);
+        int headerEnd = getHeaderEnd(before);
+        assertEquals(headerEnd, getHeaderEnd(after));
+        assertFalse(Arrays.equals(Arrays.copyOf(before, headerEnd), Arrays.copyOf(after, headerEnd)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(before, headerEnd, before.length), Arrays.copyOfRange(after, headerEnd, after.length)));
+        assertTrue(Arrays.equals(journalBefore, readFile(databaseFileName + ".journal")));
+        assertFalse(new File(databaseFileName + ".header").exists());
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), newPassword);
+        assertEquals(101, db.getAccountNames().size());
+        assertEquals("hotmail password", new String(db.getAccount("Hotmail").getPassword()));
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName + ".bak"), newPassword);
+        assertEquals(100, db.getAccountNames().size());
+        String[] files = new String[] {databaseFileName, databaseFileName + ".bak"};
+        for (int i = 0; i < files.length; i++) {
+            try {
+                new PasswordDatabasePersistence().load(new File(files[i]), password);
+                fail("Should have got an InvalidPasswordException");
+            } catch (InvalidPasswordException e) {
+                //should get here
+            }
+        }
+    }
+
+
+    public void testFailedPasswordChangeKeepsOldPassword() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the files don't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+        deleteFile(databaseFileName + ".bak");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail", "userid".getBytes(), "hotmail password".toCharArray(), "url".getBytes(), "notes".getBytes()));
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence(password);
+        dbPers.save(db);
+        dbPers.setCompression(Codec.DEFLATE, 1);
+        dbPers.save(db);
+        //Files with a wrapped key can't be read by versions before 9
+        assertEquals(9, readFile(databaseFileName)[0]);
+
+        //Something in the way of the copy of the old header stops the header being rewritten
+        File undoFile = new File(databaseFileName + ".header");
+        assertTrue(undoFile.mkdir());
+        try {
+            dbPers.changePassword(db, "new password".toCharArray());
+            fail("Should have got an IOException");
+        } catch (IOException e) {
+            //should get here
+        } finally {
+            undoFile.delete();
+        }
+
+        //The old password is still the one in use and both files open with it
+        assertTrue(dbPers.getEncryptionService().verifyPassword(password));
+        db.addAccount(new AccountInformation("Gmail", "userid".getBytes(), "gmail password".toCharArray(), "url".getBytes(), "notes".getBytes()));
+        dbPers.save(db);
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals("gmail password", new String(db.getAccount("Gmail").getPassword()));
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName + ".bak"), password);
+        assertEquals("hotmail password", new String(db.getAccount("Hotmail").getPassword()));
+    }
+
+
+    public void testUnfinishedPasswordChangeIsUndone() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the files don't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+        deleteFile(databaseFileName + ".bak");
+        deleteFile(databaseFileName + ".header");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail", "userid".getBytes(), "hotmail password".toCharArray(), "url".getBytes(), "notes".getBytes()));
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence(password);
+        dbPers.save(db);
+        byte[] before = readFile(databaseFileName);
+        int headerEnd = getHeaderEnd(before);
+
+        //Stop part way through writing the new header, with the old one kept alongside
+        char[] newPassword = "new password".toCharArray();
+        dbPers.changePassword(db, newPassword);
+        writeHeaderUndo(Arrays.copyOf(before, headerEnd), true);
+        RandomAccessFile file = new RandomAccessFile(databaseFileName, "rw");
+        try {
+            file.seek(headerEnd - 10);
+            file.write(new byte[10]);
+        } finally {
+            file.close();
+        }
+
+        //The old header is put back when the database is next opened
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals("hotmail password", new String(db.getAccount("Hotmail").getPassword()));
+        assertTrue(Arrays.equals(before, readFile(databaseFileName)));
+        assertFalse(new File(databaseFileName + ".header").exists());
+
+        //A copy of the old header that wasn't finished is thrown away
+        dbPers = new PasswordDatabasePersistence();
+        db = dbPers.load(new File(databaseFileName), password);
+        dbPers.changePassword(db, newPassword);
+        byte[] after = readFile(databaseFileName);
+        writeHeaderUndo(Arrays.copyOf(before, headerEnd), false);
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), newPassword);
+        assertEquals("hotmail password", new String(db.getAccount("Hotmail").getPassword()));
+        assertTrue(Arrays.equals(after, readFile(databaseFileName)));
+        assertFalse(new File(databaseFileName + ".header").exists());
+    }
+
+
+    public void testChangesGoToJournal() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        db.addAccount(new AccountInformation("Yahoo Mail",
+                "this is the userid2".getBytes(),
+                "this is the password2".toCharArray(),
+                "this is the url2".getBytes(),
+                "this is the notes2".getBytes()));
+        new PasswordDatabasePersistence(password).save(db);
+        long databaseLength = new File(databaseFileName).length();
+
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+        db = dbPers.load(new File(databaseFileName), password);
+        db.deleteAccount("Yahoo Mail");
+        db.addAccount(new AccountInformation("Gmail",
+                "this is the userid3".getBytes(),
+                "this is the password3".toCharArray(),
+                "this is the url3".getBytes(),
+                "this is the notes3".getBytes()));
+        dbPers.save(db);
+
+        //The database file is left alone, the changes are in the journal
+        assertEquals(databaseLength, new File(databaseFileName).length());
+        assertTrue(new File(databaseFileName + ".journal").exists());
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals(2, db.getAccountNames().size());
+        assertNull(db.getAccount("Yahoo Mail"));
+        assertEquals("this is the password", new String(db.getAccount("Hotmail").getPassword()));
+        assertEquals("this is the password3", new String(db.getAccount("Gmail").getPassword()));
+    }
+
+
+    public void testJournalIsCompacted() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException, InterruptedException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        new PasswordDatabasePersistence(password).save(db);
+
+        //Add enough to the journal for it to be folded back into the database
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+        db = dbPers.load(new File(databaseFileName), password);
+        byte[] notes = new byte[1000];
+        for (int i = 0; i < 200; i++) {
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    notes));
+            dbPers.save(db);
+        }
+
+        //Without compaction the journal would hold all 200 accounts
+        dbPers.waitForCompaction();
+        File journal = new File(databaseFileName + ".journal");
+        assertTrue("The journal should have been compacted", journal.length() < 100 * notes.length);
+
+        //Accounts not read yet have moved in the new file
+        assertEquals("this is the password", new String(db.getAccount("Hotmail").getPassword()));
+
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals(201, db.getAccountNames().size());
+        assertEquals("password 199", new String(db.getAccount("Account 199").getPassword()));
+    }
+
+
+    public void testInterruptedSaves() throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the file doesn't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+
+        PasswordDatabase db = new PasswordDatabase(new File(databaseFileName));
+        db.addAccount(new AccountInformation("Hotmail",
+                "this is the userid".getBytes(),
+                "this is the password".toCharArray(),
+                "this is the url".getBytes(),
+                "this is the notes".getBytes()));
+        new PasswordDatabasePersistence(password).save(db);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            //Kill a journal append part way through
+            CrashingPersistence dbPers = new CrashingPersistence(password);
+            db = dbPers.load(new File(databaseFileName), password);
+            db.addAccount(new AccountInformation("Account " + i,
+                    ("userid " + i).getBytes(),
+                    ("password " + i).toCharArray(),
+                    ("url " + i).getBytes(),
+                    ("notes " + i).getBytes()));
+            dbPers.crashAfter = random.nextInt(50);
+            try {
+                dbPers.save(db);
+                fail("The save should have been interrupted");
+            } catch (IOException e) {
+                //expected
+            }
+            assertEquals(i + 1, new PasswordDatabasePersistence().load(new File(databaseFileName), password).getAccountNames().size());
+
+            //The next save has to cope with what the last one left behind
+            dbPers.crashAfter = Long.MAX_VALUE;
+            dbPers.save(db);
+            db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+            assertEquals(i + 2, db.getAccountNames().size());
+            assertEquals("password " + i, new String(db.getAccount("Account " + i).getPassword()));
+        }
+
+        //Kill a rewrite of the whole file part way through
+        CrashingPersistence dbPers = new CrashingPersistence(password);
+        db.addAccount(new AccountInformation("Gmail",
+                "this is the userid3".getBytes(),
+                "this is the password3".toCharArray(),
+                "this is the url3".getBytes(),
+                "this is the notes3".getBytes()));
+        dbPers.crashAfter = random.nextInt((int) new File(databaseFileName).length());
+        try {
+            dbPers.save(db);
+            fail("The save should have been interrupted");
+        } catch (IOException e) {
+            //expected
+        }
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals(21, db.getAccountNames().size());
+        assertNull(db.getAccount("Gmail"));
+
+        //A successful rewrite keeps the previous version as a backup
+        db.addAccount(new AccountInformation("Gmail",
+                "this is the userid3".getBytes(),
+                "this is the password3".toCharArray(),
+                "this is the url3".getBytes(),
+                "this is the notes3".getBytes()));
+        dbPers.crashAfter = Long.MAX_VALUE;
+        dbPers.save(db);
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), password);
+        assertEquals(22, db.getAccountNames().size());
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName + ".bak"), password);
+        assertEquals(21, db.getAccountNames().size());
+    }
+
+
+    /**
+     * Fails every write once crashAfter bytes have been written, leaving
+     * whatever was written before that behind as a crash would
+     */
+    private static class CrashingPersistence extends PasswordDatabasePersistence {
+
+        private long crashAfter = Long.MAX_VALUE;
+
+        public CrashingPersistence(char[] password) throws CryptoException {
+            super(password);
+        }
+
+        OutputStream newOutputStream(FileChannel channel) {
+            return new FilterOutputStream(super.newOutputStream(channel)) {
+                private long written = 0;
+
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (written + len > crashAfter) {
+                        out.write(b, off, (int) (crashAfter - written));
+                        written = crashAfter;
+                        throw new IOException("Simulated crash");
+                    }
+                    out.write(b, off, len);
+                    written += len;
+                }
+            };
+        }
+
+    }
+
+
+    /**
+     * Open a copy of fixtures/version[version].upm, next to this class,
+     * which was saved by UPM when that was the version it wrote. Then save
+     * a change to it and rewrite it in the current version, opening it
+     * again after each. Each fixture holds the same two accounts with the
+     * password "fixture password".
+     */
+    private void checkFixture(int version) throws CryptoException, IOException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        //Make sure the files don't exist
+        deleteFile(databaseFileName);
+        deleteFile(databaseFileName + ".journal");
+        deleteFile(databaseFileName + ".bak");
+
+        InputStream in = getClass().getResourceAsStream("fixtures/version" + version + ".upm");
+        assertNotNull("No fixture for version " + version, in);
+        FileOutputStream out = new FileOutputStream(databaseFileName);
+        try {
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        assertEquals(version, readFile(databaseFileName)[0]);
+
+        char[] fixturePassword = "fixture password".toCharArray();
+        PasswordDatabasePersistence dbPers = new PasswordDatabasePersistence();
+        PasswordDatabase db = dbPers.load(new File(databaseFileName), fixturePassword);
+        checkFixtureAccounts(db);
+
+        //Changes go in the journal of files that have one and the whole file otherwise
+        db.addAccount(new AccountInformation("Yahoo", "yahoo user".getBytes(), "yahoo password".toCharArray(), "http://www.yahoo.com".getBytes(), "".getBytes()));
+        dbPers.save(db);
+        assertEquals(version >= 5 ? version : 9, readFile(databaseFileName)[0]);
+        dbPers = new PasswordDatabasePersistence();
+        db = dbPers.load(new File(databaseFileName), fixturePassword);
+        checkFixtureAccounts(db);
+        assertEquals("yahoo password", new String(db.getAccount("Yahoo").getPassword()));
+
+        //Rewriting the file brings it up to the current version
+        dbPers.setCompression(Codec.LZ, 0);
+        dbPers.save(db);
+        assertEquals(9, readFile(databaseFileName)[0]);
+        db = new PasswordDatabasePersistence().load(new File(databaseFileName), fixturePassword);
+        checkFixtureAccounts(db);
+        assertEquals("yahoo password", new String(db.getAccount("Yahoo").getPassword()));
+    }
+
+
+    private void checkFixtureAccounts(PasswordDatabase db) throws CryptoException, IOException {
+        AccountInformation hotmail = db.getAccount("Hotmail");
+        assertEquals("hotmail user", new String(hotmail.getUserId(), "UTF-8"));
+        assertEquals("hotmail p\u00e4ssword", new String(hotmail.getPassword()));
+        assertEquals("http://www.hotmail.com", new String(hotmail.getUrl(), "UTF-8"));
+        assertEquals("hotmail notes", new String(hotmail.getNotes(), "UTF-8"));
+        AccountInformation gmail = db.getAccount("Gmail");
+        assertEquals("gmail user", new String(gmail.getUserId(), "UTF-8"));
+        assertEquals("gmail password", new String(gmail.getPassword()));
+        assertEquals("http://mail.google.com", new String(gmail.getUrl(), "UTF-8"));
+        assertEquals("", new String(gmail.getNotes(), "UTF-8"));
+    }
+
+
+    private byte[] readFile(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return bytes;
+        } finally {
+            file.close();
+        }
+    }
+
+
+    /**
+     * @return where the header of a database file ends and the records start
+     */
+    private int getHeaderEnd(byte[] databaseFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(databaseFile, 1 + EncryptionService.SALT_LENGTH, 4));
+        return 1 + EncryptionService.SALT_LENGTH + 4 + in.readInt();
+    }
+
+
+    /**
+     * Keep a header the way a password change does while it's rewriting
+     * it, or as if it stopped before it had kept all of it
+     */
+    private void writeHeaderUndo(byte[] header, boolean complete) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(header);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(databaseFileName + ".header"));
+        try {
+            if (complete) {
+                out.write(header);
+                out.writeLong(checksum.getValue());
+            } else {
+                out.write(header, 0, header.length / 2);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
     private void deleteFile(String fileName) {
         File f = new File(fileName);
         if (f.exists()) {
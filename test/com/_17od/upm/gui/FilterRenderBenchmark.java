@@ -0,0 +1,142 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.gui;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+
+import com._17od.upm.util.FuzzyMatcher;
+
+/**
+ * Times typing a search into the search field and then deleting it again:
+ * searching the account names, user IDs and URLs, putting the ranked
+ * results in the list model and painting the visible part of the list,
+ * set up the way MainWindow sets it up. It's run by hand with
+ * <pre>
+ * java -Djava.awt.headless=true com._17od.upm.gui.FilterRenderBenchmark [size...]
+ * </pre>
+ */
+public class FilterRenderBenchmark {
+
+    private static final String[] WORDS = {"mail", "bank", "shop", "work", "home", "forum", "cloud", "game", "news", "travel"};
+    private static final String TYPED = "account 12";
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        int[] sizes = {10000, 50000, 100000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            // The first run of each warms the code up
+            for (int run = 0; run <= RUNS; run++) {
+                long[] times = time(sizes[i]);
+                if (run > 0) {
+                    System.out.println(sizes[i] + " accounts, " + (TYPED.length() * 2 + 1) + " keystrokes: searching "
+                            + times[0] / 1000000 + "ms (slowest keystroke " + times[1] / 1000000
+                            + "ms), showing and painting the results " + times[2] / 1000000 + "ms");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the nanoseconds taken to search for each step of typing TYPED
+     * and deleting it again, the longest of those, and the nanoseconds
+     * taken to show and paint the results
+     */
+    private static long[] time(int accounts) {
+        // A new index each time so the searches aren't already cached
+        Random random = new Random(1);
+        FuzzyMatcher index = new FuzzyMatcher();
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < accounts; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            String name = "Account " + i + " " + word;
+            names.add(name);
+            index.put(name, "user" + i + "@" + word + ".com", "https://www." + word + (i % 100) + ".com/login");
+        }
+        SortedListModel model = new SortedListModel();
+        JList list = newList(model);
+        JScrollPane scrollPane = new JScrollPane(list);
+        scrollPane.setSize(300, 600);
+        BufferedImage image = new BufferedImage(300, 600, BufferedImage.TYPE_INT_RGB);
+        MainWindow.setLargeListMode(list, true);
+        model.setAll(names);
+        layout(scrollPane);
+
+        long searching = 0;
+        long slowest = 0;
+        long showing = 0;
+        for (int i = -TYPED.length(); i <= TYPED.length(); i++) {
+            String text = TYPED.substring(0, TYPED.length() - Math.abs(i));
+            long start = System.nanoTime();
+            ArrayList<String> matches = index.search(text);
+            long searched = System.nanoTime();
+            MainWindow.setLargeListMode(list, matches.size() > MainWindow.LARGE_LIST_SIZE);
+            if (text.length() > 0) {
+                model.setRanked(matches);
+            } else {
+                model.setAll(matches);
+            }
+            layout(scrollPane);
+            Graphics2D g = image.createGraphics();
+            scrollPane.paint(g);
+            g.dispose();
+            searching += searched - start;
+            slowest = Math.max(slowest, searched - start);
+            showing += System.nanoTime() - searched;
+        }
+        return new long[] {searching, slowest, showing};
+    }
+
+    /**
+     * JList has a type parameter from Java 7 on, so there making one for
+     * the raw SortedListModel is unchecked
+     */
+    @SuppressWarnings("unchecked")
+    private static JList newList(SortedListModel model) {
+        return new JList(model);
+    }
+
+    private static void layout(Component component) {
+        component.doLayout();
+        if (component instanceof Container) {
+            Component[] children = ((Container) component).getComponents();
+            for (int i = 0; i < children.length; i++) {
+                layout(children[i]);
+            }
+        }
+    }
+
+}
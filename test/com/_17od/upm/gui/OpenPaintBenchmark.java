@@ -0,0 +1,132 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.gui;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+
+import com._17od.upm.crypto.KeyDerivation;
+import com._17od.upm.database.AccountInformation;
+import com._17od.upm.database.PasswordDatabase;
+import com._17od.upm.database.PasswordDatabasePersistence;
+import com._17od.upm.util.FuzzyMatcher;
+
+/**
+ * Times opening a database and painting the accounts list for the first
+ * time, the way MainWindow does after the password has been entered. It's
+ * run by hand with
+ * <pre>
+ * java -Djava.awt.headless=true com._17od.upm.gui.OpenPaintBenchmark [accounts]
+ * </pre>
+ * and compares the list measuring every name with the list in large list
+ * mode. The database uses a cheap key derivation so that isn't what's
+ * being timed.
+ */
+public class OpenPaintBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File databaseFile = File.createTempFile("upm", ".db");
+        databaseFile.deleteOnExit();
+        new File(databaseFile.getPath() + ".bak").deleteOnExit();
+        databaseFile.delete();
+        PasswordDatabase database = new PasswordDatabase(databaseFile);
+        for (int i = 0; i < accounts; i++) {
+            database.addAccount(new AccountInformation("Account " + i, ("user" + i).getBytes(),
+                    ("password" + i).toCharArray(), ("http://www.example" + i + ".com").getBytes(), "".getBytes()));
+        }
+        new PasswordDatabasePersistence(PASSWORD.toCharArray(), KeyDerivation.pbkdf2(1000)).save(database);
+
+        // The first run warms the code up
+        for (int run = 0; run <= RUNS; run++) {
+            long[] measured = time(databaseFile, false);
+            long[] large = time(databaseFile, true);
+            if (run > 0) {
+                System.out.println(accounts + " accounts: open " + measured[0] / 1000000 + "ms, fill the list "
+                        + measured[1] / 1000000 + "ms, then lay out and paint it " + measured[2] / 1000000
+                        + "ms measuring every name or " + large[2] / 1000000 + "ms in large list mode");
+            }
+        }
+    }
+
+    /**
+     * @return the nanoseconds taken to open the database, to put its
+     * accounts in the list model, and then to lay out and paint the list
+     */
+    private static long[] time(File databaseFile, boolean largeListMode) throws Exception {
+        long start = System.nanoTime();
+        PasswordDatabase database = new PasswordDatabasePersistence().load(databaseFile, PASSWORD.toCharArray());
+        ArrayList<String> accountNames = database.getAccountNames();
+        FuzzyMatcher index = new FuzzyMatcher();
+        for (int i = 0; i < accountNames.size(); i++) {
+            index.put(accountNames.get(i), null, null);
+        }
+        long opened = System.nanoTime();
+
+        SortedListModel model = new SortedListModel();
+        JList list = newList(model);
+        if (largeListMode) {
+            MainWindow.setLargeListMode(list, true);
+        }
+        JScrollPane scrollPane = new JScrollPane(list);
+        scrollPane.setSize(400, 600);
+        model.setAll(accountNames);
+        long filled = System.nanoTime();
+        layout(scrollPane);
+        BufferedImage image = new BufferedImage(400, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        scrollPane.paint(g);
+        g.dispose();
+        return new long[] {opened - start, filled - opened, System.nanoTime() - filled};
+    }
+
+    /**
+     * JList has a type parameter from Java 7 on, so there making one for
+     * the raw SortedListModel is unchecked
+     */
+    @SuppressWarnings("unchecked")
+    private static JList newList(SortedListModel model) {
+        return new JList(model);
+    }
+
+    private static void layout(Component component) {
+        component.doLayout();
+        if (component instanceof Container) {
+            Component[] children = ((Container) component).getComponents();
+            for (int i = 0; i < children.length; i++) {
+                layout(children[i]);
+            }
+        }
+    }
+
+}
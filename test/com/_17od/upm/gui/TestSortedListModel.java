@@ -0,0 +1,225 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.gui;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import junit.framework.TestCase;
+
+
+public class TestSortedListModel extends TestCase {
+
+    public void testOrder() {
+        Random random = new Random(1);
+        SortedListModel model = new SortedListModel();
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            String name = "Account " + random.nextInt(1000);
+            model.addElement(name);
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names, Collator.getInstance());
+        assertEquals(names.size(), model.getSize());
+        for (int i = 0; i < names.size(); i++) {
+            assertEquals(names.get(i), model.getElementAt(i));
+        }
+    }
+
+
+    public void testRemove() {
+        SortedListModel model = new SortedListModel();
+        model.addElement("b");
+        model.addElement("a");
+        model.addElement("c");
+        assertTrue(model.contains("b"));
+        assertTrue(model.removeElement("b"));
+        assertFalse(model.removeElement("b"));
+        assertFalse(model.contains("b"));
+        assertEquals(2, model.getSize());
+        assertEquals("a", model.getElementAt(0));
+        assertEquals("c", model.getElementAt(1));
+        model.clear();
+        assertEquals(0, model.getSize());
+    }
+
+
+    public void testSetAll() {
+        Random random = new Random(2);
+        final SortedListModel model = new SortedListModel();
+        //Keeps a copy of the model up to date from the events alone, the way a JList does
+        final ArrayList<String> copy = new ArrayList<String>();
+        final int[] events = new int[1];
+        model.addListDataListener(new ListDataListener() {
+            public void intervalAdded(ListDataEvent e) {
+                for (int i = e.getIndex0(); i <= e.getIndex1(); i++) {
+                    copy.add(i, model.getElementAt(i));
+                }
+                events[0]++;
+            }
+            public void intervalRemoved(ListDataEvent e) {
+                copy.subList(e.getIndex0(), e.getIndex1() + 1).clear();
+                events[0]++;
+            }
+            public void contentsChanged(ListDataEvent e) {
+                copy.clear();
+                for (int i = 0; i < model.getSize(); i++) {
+                    copy.add(model.getElementAt(i));
+                }
+                events[0]++;
+            }
+        });
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("Account " + i);
+        }
+        for (int i = 0; i < 200; i++) {
+            //Anything from a few changes to a completely different list
+            ArrayList<String> newNames = new ArrayList<String>();
+            int keep = random.nextInt(1000);
+            for (int j = 0; j < names.size(); j++) {
+                if (random.nextInt(1000) < keep) {
+                    newNames.add(names.get(j));
+                }
+            }
+            int add = random.nextInt(3) == 0 ? random.nextInt(500) : random.nextInt(5);
+            for (int j = 0; j < add; j++) {
+                newNames.add("Account " + random.nextInt(2000));
+            }
+            events[0] = 0;
+            model.setAll(newNames);
+
+            ArrayList<String> expected = new ArrayList<String>();
+            for (int j = 0; j < newNames.size(); j++) {
+                if (!expected.contains(newNames.get(j))) {
+                    expected.add(newNames.get(j));
+                }
+            }
+            Collections.sort(expected, Collator.getInstance());
+            assertEquals(expected.size(), model.getSize());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.get(j), model.getElementAt(j));
+            }
+            assertEquals(expected, copy);
+            assertTrue(events[0] <= 16);
+        }
+
+        //Nothing changing fires nothing
+        events[0] = 0;
+        ArrayList<String> same = new ArrayList<String>();
+        for (int i = 0; i < model.getSize(); i++) {
+            same.add(model.getElementAt(i));
+        }
+        model.setAll(same);
+        assertEquals(0, events[0]);
+    }
+
+
+    public void testSetCollator() {
+        SortedListModel model = new SortedListModel(Collator.getInstance(Locale.ENGLISH));
+        model.addElement("zebra");
+        model.addElement("\u00f6l");
+        model.addElement("apple");
+        assertEquals("apple", model.getElementAt(0));
+        assertEquals("\u00f6l", model.getElementAt(1));
+        assertEquals("zebra", model.getElementAt(2));
+
+        final int[] changed = new int[1];
+        model.addListDataListener(new ListDataListener() {
+            public void intervalAdded(ListDataEvent e) {
+            }
+            public void intervalRemoved(ListDataEvent e) {
+            }
+            public void contentsChanged(ListDataEvent e) {
+                changed[0]++;
+            }
+        });
+        //Swedish puts \u00f6 after z
+        model.setCollator(Collator.getInstance(new Locale("sv")));
+        assertEquals(1, changed[0]);
+        assertEquals("apple", model.getElementAt(0));
+        assertEquals("zebra", model.getElementAt(1));
+        assertEquals("\u00f6l", model.getElementAt(2));
+        assertTrue(model.contains("\u00f6l"));
+        model.addElement("\u00e5");
+        assertEquals("\u00e5", model.getElementAt(2));
+    }
+
+
+    public void testSetRanked() {
+        SortedListModel model = new SortedListModel();
+        final int[] changed = new int[1];
+        model.addListDataListener(new ListDataListener() {
+            public void intervalAdded(ListDataEvent e) {
+            }
+            public void intervalRemoved(ListDataEvent e) {
+            }
+            public void contentsChanged(ListDataEvent e) {
+                changed[0]++;
+            }
+        });
+        model.setAll(names(new String[] {"a", "b", "c"}));
+
+        model.setRanked(names(new String[] {"c", "a"}));
+        assertEquals(1, changed[0]);
+        assertEquals(2, model.getSize());
+        assertEquals("c", model.getElementAt(0));
+        assertEquals("a", model.getElementAt(1));
+        //The same results again change nothing
+        model.setRanked(names(new String[] {"c", "a"}));
+        assertEquals(1, changed[0]);
+
+        assertTrue(model.contains("a"));
+        assertFalse(model.contains("b"));
+        assertTrue(model.removeElement("c"));
+        model.addElement("b");
+        assertEquals("a", model.getElementAt(0));
+        assertEquals("b", model.getElementAt(1));
+
+        //Back to sorted order
+        model.setAll(names(new String[] {"c", "b", "a"}));
+        assertEquals(2, changed[0]);
+        assertEquals(3, model.getSize());
+        assertEquals("a", model.getElementAt(0));
+        assertEquals("c", model.getElementAt(2));
+    }
+
+
+    private static ArrayList<String> names(String[] names) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (int i = 0; i < names.length; i++) {
+            list.add(names[i]);
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * $Id$
+ * 
+ * Universal Password Manager
+ * Copyright (C) 2005-2010 Adrian Smith
+ *
+ * This file is part of Universal Password Manager.
+ *   
+ * Universal Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Universal Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Universal Password Manager; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com._17od.upm.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+public class TestFuzzyMatcher extends TestCase {
+
+    public void testScore() {
+        assertEquals(FuzzyMatcher.NO_MATCH, score("gm", "mg"));
+        assertEquals(FuzzyMatcher.NO_MATCH, score("gmail", "gmai"));
+        assertEquals(FuzzyMatcher.NO_MATCH, score("", "gmail"));
+        //Characters next to each other beat ones spread out
+        assertTrue(score("mail", "gmail") > score("mail", "mxaxixl"));
+        //Starting a word beats the middle of one
+        assertTrue(score("ma", "my mail") > score("ma", "gmail"));
+        //The best place counts, not the first
+        assertTrue(score("gm", "program gmail") > score("gm", "program"));
+        //A short gap costs less than a long one
+        assertTrue(score("ab", "axb") > score("ab", "axxxxb"));
+    }
+
+
+    public void testRanking() {
+        FuzzyMatcher index = new FuzzyMatcher();
+        index.put("Program", "me", "http://www.example.com");
+        index.put("Hotmail", "me", "http://www.hotmail.com");
+        index.put("Bank", "gmx user", "http://www.bank.com");
+        index.put("Gmail", "me", "http://www.google.com");
+        index.put("Webmail", "me", "http://www.example.com");
+        index.put("Work", "me", "http://webmail.example.com");
+
+        assertEquals(names(new String[] {"Gmail", "Bank", "Program"}), index.search("GM"));
+        //The name counts more than the URL
+        assertEquals(names(new String[] {"Webmail", "Work"}), index.search("webm"));
+        //The shortest name comes first when the scores are the same
+        assertEquals(names(new String[] {"Gmail", "Hotmail", "Webmail", "Work"}), index.search("mail"));
+        assertEquals(names(new String[] {"Bank"}), index.search("bnk"));
+        assertEquals(0, index.search("yahoo").size());
+        assertEquals(names(new String[] {"Bank", "Gmail", "Hotmail", "Program", "Webmail", "Work"}), sorted(index.search("")));
+    }
+
+
+    public void testPutAndRemove() {
+        FuzzyMatcher index = new FuzzyMatcher();
+        index.put("aaaa", null, null);
+        index.put("baaa", null, null);
+        assertEquals(2, index.size());
+        assertEquals(0, index.search("xyz").size());
+
+        //Putting an account again replaces its user ID and URL
+        index.put("aaaa", "xyz", null);
+        assertEquals(2, index.size());
+        assertEquals(names(new String[] {"aaaa"}), index.search("xyz"));
+        index.put("aaaa", null, null);
+        assertEquals(0, index.search("xyz").size());
+
+        assertTrue(index.remove("aaaa"));
+        assertFalse(index.remove("aaaa"));
+        assertFalse(index.contains("aaaa"));
+        assertEquals(names(new String[] {"baaa"}), index.search("aaa"));
+        assertTrue(index.remove("baaa"));
+        assertEquals(0, index.search("aaa").size());
+
+        //Ids are reused
+        index.put("xaaay", null, null);
+        assertEquals(names(new String[] {"xaaay"}), index.search("AAA"));
+    }
+
+
+    public void testTypingAndDeleting() {
+        Random random = new Random(2);
+        FuzzyMatcher index = new FuzzyMatcher();
+        HashMap<String, String> userIds = new HashMap<String, String>();
+        for (int i = 0; i < 300; i++) {
+            //Type some text a character at a time, delete some of it and
+            //change the accounts in between
+            String text = randomName(random);
+            for (int j = 0; j <= text.length(); j++) {
+                assertSearch(index, userIds, text.substring(0, j));
+            }
+            for (int j = text.length(); j >= 0; j--) {
+                assertSearch(index, userIds, text.substring(0, j));
+                if (random.nextInt(5) == 0) {
+                    String name = randomName(random);
+                    String userId = random.nextBoolean() ? randomName(random) : null;
+                    index.put(name, userId, null);
+                    userIds.put(name, userId);
+                }
+                if (userIds.size() > 0 && random.nextInt(5) == 0) {
+                    String name = new ArrayList<String>(userIds.keySet()).get(random.nextInt(userIds.size()));
+                    userIds.remove(name);
+                    assertTrue(index.remove(name));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Check index finds the same accounts as checking each one, in the same
+     * order as an index that hasn't cached any searches
+     */
+    private static void assertSearch(FuzzyMatcher index, HashMap<String, String> userIds, String text) {
+        FuzzyMatcher fresh = new FuzzyMatcher();
+        ArrayList<String> expected = new ArrayList<String>();
+        Iterator<String> it = userIds.keySet().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            String userId = userIds.get(name);
+            fresh.put(name, userId, null);
+            if (text.length() == 0 || isSubsequence(text, name) || (userId != null && isSubsequence(text, userId))) {
+                expected.add(name);
+            }
+        }
+        ArrayList<String> found = index.search(text);
+        assertEquals("Searching for " + text, sorted(expected), sorted(found));
+        if (text.length() > 0) {
+            assertEquals("Searching for " + text, fresh.search(text), found);
+        }
+    }
+
+
+    private static boolean isSubsequence(String part, String text) {
+        int matched = 0;
+        for (int i = 0; i < text.length() && matched < part.length(); i++) {
+            if (Character.toLowerCase(text.charAt(i)) == Character.toLowerCase(part.charAt(matched))) {
+                matched++;
+            }
+        }
+        return matched == part.length();
+    }
+
+
+    private static int score(String query, String target) {
+        return FuzzyMatcher.score(query.toCharArray(), target.toCharArray());
+    }
+
+
+    private static String randomName(Random random) {
+        StringBuffer name = new StringBuffer();
+        int length = 1 + random.nextInt(10);
+        for (int i = 0; i < length; i++) {
+            char c = (char) ('a' + random.nextInt(4));
+            name.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+        }
+        return name.toString();
+    }
+
+
+    private static ArrayList<String> names(String[] names) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (int i = 0; i < names.length; i++) {
+            list.add(names[i]);
+        }
+        return list;
+    }
+
+
+    private static ArrayList<String> sorted(ArrayList<String> names) {
+        ArrayList<String> copy = new ArrayList<String>(names);
+        Collections.sort(copy);
+        return copy;
+    }
+
+}